@@ -2,6 +2,12 @@ package app_kvECS;
 
 import java.io.*;
 import java.util.*;
+import app_kvServer.Cache.CacheLimits;
+import app_kvServer.Cache.CacheStats;
+import com.google.gson.Gson;
+import common.messages.KVMessage;
+import common.messages.Message;
+import common.module.CommunicationModule;
 import ecs.ECS;
 import ecs.ECSNode;
 import ecs.IECSNode;
@@ -11,7 +17,7 @@ import org.apache.log4j.Logger;
 
 public class ECSClient implements IECSClient {
     private static Logger logger = Logger.getRootLogger();
-    private static final String[] CACHE_STRATEGY = {"LRU", "FIFO", "LFU", "None"};
+    private static final String[] CACHE_STRATEGY = {"LRU", "FIFO", "LFU", "TINYLFU", "OFFHEAP", "None"};
     private static final String PROMPT = "B9ECS> ";
     private static final int AWAIT_TIEMOUT = 20000;
     private BufferedReader stdin;
@@ -72,8 +78,16 @@ public class ECSClient implements IECSClient {
 
     @Override
     public Collection<IECSNode> addNodes(int count, String cacheStrategy, int cacheSize) {
+        return addNodes(count, cacheStrategy, cacheSize, 0);
+    }
+
+    /**
+     * Add nodes whose caches are also bounded by bytes of keys and values
+     * @param cacheBytes  bound on cached bytes, 0 for none
+     */
+    public Collection<IECSNode> addNodes(int count, String cacheStrategy, int cacheSize, long cacheBytes) {
 
-        Collection<IECSNode> serversTaken = setupNodes(count, cacheStrategy, cacheSize);
+        Collection<IECSNode> serversTaken = ecs.setupNewServers(count, cacheStrategy, cacheSize, cacheBytes);
 
         if (serversTaken != null) {
 
@@ -147,6 +161,40 @@ public class ECSClient implements IECSClient {
         return null;
     }
 
+    /**
+     * Ask every running server for its cache counters
+     * @return  counters by server name, servers that did not answer are left out
+     */
+    public Map<String, CacheStats.Report> getCacheStats() {
+        Map<String, CacheStats.Report> reports = new TreeMap<>();
+        Gson gson = new Gson();
+
+        for (IECSNode node : ecs.getServers()) {
+            CommunicationModule cm = new CommunicationModule(node.getNodeHost(), node.getNodePort());
+            try {
+                cm.connect();
+                cm.setStream();
+                //welcome message
+                cm.receiveMessage();
+
+                cm.sendMessage(gson.toJson(new Message(KVMessage.StatusType.STATS, "", "")));
+                KVMessage response = gson.fromJson(cm.receiveMessage(), Message.class);
+
+                if (response != null && response.getStatus() == KVMessage.StatusType.STATS_SUCCESS)
+                    reports.put(node.getNodeName(), gson.fromJson(response.getValue(), CacheStats.Report.class));
+            } catch (Exception e) {
+                logger.error("Cannot get cache stats of " + node.getNodeName() + " " + e);
+            } finally {
+                try {
+                    cm.disconnect();
+                } catch (IOException e) {
+                    logger.error("Unable to close connection!");
+                }
+            }
+        }
+        return reports;
+    }
+
     public void run() {
         while (!stop) {
             stdin = new BufferedReader(new InputStreamReader(System.in));
@@ -187,30 +235,32 @@ public class ECSClient implements IECSClient {
             }
 
         } else if (tokens[0].equals("addnode")) {
-            if (tokens.length == 3) {
+            if (tokens.length == 3 || tokens.length == 4) {
                 String cacheStrategy = tokens[1];
                 if (Arrays.asList(CACHE_STRATEGY).contains(cacheStrategy)) {
                     int cacheSize = Integer.valueOf(tokens[2]);
-                    this.addNode(cacheStrategy, cacheSize);
+                    long cacheBytes = (tokens.length == 4) ? CacheLimits.parseBytes(tokens[3]) : 0;
+                    this.addNodes(1, cacheStrategy, cacheSize, cacheBytes);
                 } else {
                     printError("Unknown cache strategy");
                 }
             } else {
-                printError("Usage: addnode <count> <cache strategy> <cache size>");
+                printError("Usage: addnode <cache strategy> <cache size> [cache bytes]");
             }
 
         } else if (tokens[0].equals("addnodes")) {
-            if (tokens.length == 4) {
+            if (tokens.length == 4 || tokens.length == 5) {
                 int count = Integer.valueOf(tokens[1]);
                 String cacheStrategy = tokens[2];
                 if (Arrays.asList(CACHE_STRATEGY).contains(cacheStrategy)) {
                     int cacheSize = Integer.valueOf(tokens[3]);
-                    this.addNodes(count, cacheStrategy, cacheSize);
+                    long cacheBytes = (tokens.length == 5) ? CacheLimits.parseBytes(tokens[4]) : 0;
+                    this.addNodes(count, cacheStrategy, cacheSize, cacheBytes);
                 } else {
                     printError("Unknown cache strategy");
                 }
             } else {
-                printError("Usage: addnode <count> <cache strategy> <cache size>");
+                printError("Usage: addnodes <count> <cache strategy> <cache size> [cache bytes]");
             }
 
         } else if (tokens[0].equals("removenode")) {
@@ -227,6 +277,18 @@ public class ECSClient implements IECSClient {
                 printError("Usage: removenode <server name>");
             }
 
+        } else if (tokens[0].equals("stats")) {
+            Map<String, CacheStats.Report> reports = this.getCacheStats();
+            if (reports.isEmpty()) {
+                printError("No server answered!");
+            }
+            for (Map.Entry<String, CacheStats.Report> entry : reports.entrySet()) {
+                CacheStats.Report r = entry.getValue();
+                System.out.println(String.format("%s %s size=%d maxBytes=%d bytes=%d hits=%d misses=%d hitRatio=%.3f evictions=%d avgLoad=%.3fms",
+                        entry.getKey(), r.strategy, r.cacheSize, r.maxBytes, r.bytes,
+                        r.hits, r.misses, r.hitRatio, r.evictions, r.avgLoadMillis));
+            }
+
         } else if (tokens[0].equals("logLevel")) {
             if (tokens.length == 2) {
                 String level = setLevel(tokens[1]);
@@ -0,0 +1,64 @@
+package app_kvServer.Cache;
+
+import java.util.ArrayList;
+import java.util.Collection;
+
+/**
+ * Capacity rules shared by the caches.
+ * A cache may be bounded by entries, by bytes of keys and values, or both.
+ * With a byte bound, an entry bound of 0 means only bytes count.
+ */
+public final class CacheLimits {
+
+    private CacheLimits() {
+    }
+
+    /**
+     * Parse a byte count such as 512, 64KB, 16MB or 1GB
+     */
+    public static long parseBytes(String s) {
+        String upper = s.trim().toUpperCase();
+        long unit = 1;
+        if (upper.endsWith("GB")) unit = 1L << 30;
+        else if (upper.endsWith("MB")) unit = 1L << 20;
+        else if (upper.endsWith("KB")) unit = 1L << 10;
+
+        String digits = upper.replaceAll("[KMG]?B$", "");
+        long bytes = Long.parseLong(digits) * unit;
+        if (bytes < 0) throw new NumberFormatException("Negative byte count " + s);
+        return bytes;
+    }
+
+    /**
+     * @return  up to count of the keys, last one first
+     */
+    static ArrayList<String> newestFirst(Collection<String> keys, int count) {
+        String[] all = keys.toArray(new String[keys.size()]);
+        ArrayList<String> newest = new ArrayList<>();
+        for (int i = all.length - 1; i >= 0 && newest.size() < count; i--) newest.add(all[i]);
+        return newest;
+    }
+
+    static long weight(String K, byte[] V) {
+        return K.length() + V.length;
+    }
+
+    /**
+     * @return  true if a cache with this many entries and bytes has to evict
+     */
+    static boolean over(int cacheSize, long maxBytes, int entries, long bytes) {
+        if (maxBytes > 0) {
+            if (bytes > maxBytes) return true;
+            if (cacheSize <= 0) return false;
+        }
+        return entries > cacheSize;
+    }
+
+    /**
+     * @return  true if a single entry of this weight can be cached at all
+     */
+    static boolean fits(int cacheSize, long maxBytes, long weight) {
+        if (maxBytes > 0) return weight <= maxBytes;
+        return cacheSize > 0;
+    }
+}
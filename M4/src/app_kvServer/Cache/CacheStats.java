@@ -0,0 +1,74 @@
+package app_kvServer.Cache;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hit, miss and load counters of a server's cache.
+ * Thread-safe, connections count without sharing a lock.
+ */
+public class CacheStats {
+
+    /**
+     * Counters at one point in time, sent to the ECS as JSON
+     */
+    public static class Report {
+        public String strategy;
+        public int cacheSize;
+        public long maxBytes;
+
+        public long bytes;
+        public long hits;
+        public long misses;
+        public double hitRatio;
+        public long evictions;
+
+        // storage reads after a miss that found the key
+        public long loads;
+        public double avgLoadMillis;
+    }
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong loads = new AtomicLong();
+    private final AtomicLong loadNanos = new AtomicLong();
+
+    public void hit() {
+        hits.incrementAndGet();
+    }
+
+    public void miss() {
+        misses.incrementAndGet();
+    }
+
+    /**
+     * @param nanos  time the storage took to return the missing value
+     */
+    public void load(long nanos) {
+        loads.incrementAndGet();
+        loadNanos.addAndGet(nanos);
+    }
+
+    /**
+     * @param cache  cache the counters belong to, null if the server does not cache
+     */
+    public Report report(String strategy, int cacheSize, long maxBytes, KVCache cache) {
+        Report report = new Report();
+        report.strategy = strategy;
+        report.cacheSize = cacheSize;
+        report.maxBytes = maxBytes;
+
+        if (cache != null) {
+            report.bytes = cache.getBytes();
+            report.evictions = cache.getEvictions();
+        }
+
+        report.hits = hits.get();
+        report.misses = misses.get();
+        long requests = report.hits + report.misses;
+        report.hitRatio = (requests == 0) ? 0 : (double) report.hits / requests;
+
+        report.loads = loads.get();
+        report.avgLoadMillis = (report.loads == 0) ? 0 : loadNanos.get() / 1e6 / report.loads;
+        return report;
+    }
+}
@@ -1,34 +1,71 @@
 package app_kvServer.Cache;
 
+import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
-public class FIFOCache extends LinkedHashMap<String,String> implements KVCache {
+public class FIFOCache extends LinkedHashMap<String, byte[]> implements KVCache {
 
     private int cacheSize;
+    private long maxBytes;
+    private long bytes;
+    private long evictions;
 
     public FIFOCache(int cacheSize) {
-        super(cacheSize+1, ((float) 1), false);
+        this(cacheSize, 0);
+    }
+
+    /**
+     * @param maxBytes  bound on bytes of keys and values, 0 for none
+     */
+    public FIFOCache(int cacheSize, long maxBytes) {
+        super(Math.max(cacheSize, 16) + 1, ((float) 1), false);
         this.cacheSize = cacheSize;
+        this.maxBytes = maxBytes;
     }
 
 
-    public String getKV(String K){
+    public byte[] getKV(String K){
         return super.get(K);
     }
 
-    public void putKV(String K, String V){
-        if (V == null || V.equals(""))
-            super.remove(K);
-        else
-            super.put(K, V);
+    public void putKV(String K, byte[] V){
+        byte[] old;
+        if (V == null || V.length == 0 || !CacheLimits.fits(cacheSize, maxBytes, CacheLimits.weight(K, V)))
+            old = super.remove(K);
+        else {
+            old = super.put(K, V);
+            bytes += CacheLimits.weight(K, V);
+        }
+        if (old != null) bytes -= CacheLimits.weight(K, old);
+
+        // first inserted first
+        Iterator<Map.Entry<String, byte[]>> it = entrySet().iterator();
+        while (CacheLimits.over(cacheSize, maxBytes, size(), bytes) && it.hasNext()) {
+            Map.Entry<String, byte[]> eldest = it.next();
+            bytes -= CacheLimits.weight(eldest.getKey(), eldest.getValue());
+            it.remove();
+            evictions++;
+        }
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    public long getEvictions() {
+        return evictions;
+    }
+
+    public List<String> hotKeys(int count) {
+        return CacheLimits.newestFirst(keySet(), count);
     }
 
-    @Override
-    protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
-        return size() > cacheSize;
+    public void clear(){
+        super.clear();
+        bytes = 0;
     }
-    public void clear(){super.clear();}
 
 
 }
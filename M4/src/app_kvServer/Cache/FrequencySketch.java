@@ -0,0 +1,89 @@
+package app_kvServer.Cache;
+
+import java.util.Arrays;
+
+/**
+ * Count-min sketch of recent key frequencies with 4-bit counters.
+ * Every key has one counter in each of four rows and its frequency is the
+ * smallest of them. After sampleSize increments every counter is halved, so
+ * the sketch forgets old popularity.
+ */
+class FrequencySketch {
+
+    private static final long[] seeds = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+
+    // 16 counters per word
+    private final long[] table;
+    private final int mask;
+
+    private final int sampleSize;
+    private int size;
+
+    FrequencySketch(int maximumSize) {
+        int length = Integer.highestOneBit(Math.max(maximumSize, 8) - 1) << 1;
+        table = new long[length];
+        mask = length - 1;
+        sampleSize = 10 * Math.max(maximumSize, 1);
+    }
+
+    /**
+     * @return  estimated number of recent accesses of the key, at most 15
+     */
+    int frequency(String key) {
+        int hash = spread(key.hashCode());
+        int min = 15;
+        for (int i = 0; i < 4; i++) {
+            long h = hash(hash, i);
+            min = Math.min(min, (int) ((table[index(h)] >>> offset(h)) & 0xf));
+        }
+        return min;
+    }
+
+    void increment(String key) {
+        int hash = spread(key.hashCode());
+        boolean added = false;
+        for (int i = 0; i < 4; i++) {
+            long h = hash(hash, i);
+            int index = index(h);
+            int offset = offset(h);
+            if (((table[index] >>> offset) & 0xf) != 0xf) {
+                table[index] += 1L << offset;
+                added = true;
+            }
+        }
+
+        if (added && ++size >= sampleSize) reset();
+    }
+
+    void clear() {
+        Arrays.fill(table, 0);
+        size = 0;
+    }
+
+    // halve every counter
+    private void reset() {
+        for (int i = 0; i < table.length; i++) {
+            table[i] = (table[i] >>> 1) & 0x7777777777777777L;
+        }
+        size /= 2;
+    }
+
+    private int index(long h) {
+        return (int) (h >>> 32) & mask;
+    }
+
+    private static int offset(long h) {
+        return (int) (h & 0xf) << 2;
+    }
+
+    private static long hash(int hash, int i) {
+        long h = (hash + seeds[i]) * seeds[i];
+        return h ^ (h >>> 29);
+    }
+
+    private static int spread(int x) {
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        return (x >>> 16) ^ x;
+    }
+}
@@ -1,11 +1,31 @@
 package app_kvServer.Cache;
 
+import java.util.List;
+
 public interface KVCache {
 
-    String getKV(String K);
+    byte[] getKV(String K);
 
-    void putKV(String K, String V);
+    /**
+     * Cache the value, a null or empty value removes the key
+     */
+    void putKV(String K, byte[] V);
 
     void clear();
 
+    /**
+     * @return  bytes of the keys and values currently cached
+     */
+    long getBytes();
+
+    /**
+     * @return  up to count cached keys, the ones the strategy keeps longest first
+     */
+    List<String> hotKeys(int count);
+
+    /**
+     * @return  entries dropped to stay within the bounds since the cache was created
+     */
+    long getEvictions();
+
 }
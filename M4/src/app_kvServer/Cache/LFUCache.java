@@ -1,81 +1,232 @@
 package app_kvServer.Cache;
 
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * Least frequently used cache with O(1) get, put and eviction.
+ * Entries sit in buckets of equal count, the buckets form a list sorted by
+ * count and empty buckets are unlinked, so there are never more buckets than
+ * entries. Ties are evicted oldest first.
+ * Counts are halved every few times the cache size of accesses, so keys that
+ * were hot a while ago lose their advantage over keys that are hot now.
+ */
+public class LFUCache implements KVCache {
 
+    // halve all counts after this many accesses per cached entry
+    private static final int agePeriod = 8;
 
-public class LFUCache implements KVCache {
+    // entries the period is based on at least, for caches bounded only by bytes
+    private static final int minAgeEntries = 64;
 
-    private HashMap<String, String> KVs;
-    private HashMap<String, Integer> counts;
-    private HashMap<Integer, LinkedHashSet<String>> list;
+    private static class Bucket {
+        long count;
+        Entry head, tail;
+        Bucket prev, next;
+
+        Bucket(long count) {
+            this.count = count;
+        }
+    }
+
+    private static class Entry {
+        final String key;
+        byte[] value;
+        Bucket bucket;
+        Entry prev, next;
+
+        Entry(String key, byte[] value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    private HashMap<String, Entry> KVs = new HashMap<>();
+
+    // lowest count first
+    private Bucket first;
 
     private int cacheSize;
-    private int min = -1;
+    private long maxBytes;
+    private long bytes;
+    private long accesses;
+    private long evictions;
 
 
     public LFUCache(int capacity) {
+        this(capacity, 0);
+    }
+
+    /**
+     * @param maxBytes  bound on bytes of keys and values, 0 for none
+     */
+    public LFUCache(int capacity, long maxBytes) {
         this.cacheSize = capacity;
+        this.maxBytes = maxBytes;
+    }
 
+    public void clear() {
         KVs = new HashMap<>();
-        counts = new HashMap<>();
-        list = new HashMap<>();
-        list.put(1, new LinkedHashSet<String>());
+        first = null;
+        bytes = 0;
+        accesses = 0;
     }
 
-    public void clear(){
-        KVs = new HashMap<>();
-        counts = new HashMap<>();
-        list = new HashMap<>();
-        list.put(1, new LinkedHashSet<String>());
+    public long getBytes() {
+        return bytes;
     }
 
-    public String getKV(String key) {
-        if (!KVs.containsKey(key))
-            return null;
-        int count = counts.get(key);
-        counts.put(key, count + 1);
-        list.get(count).remove(key);
-        if (count == min && list.get(count).size() == 0)
-            min++;
-        if (!list.containsKey(count + 1))
-            list.put(count + 1, new LinkedHashSet<String>());
-        list.get(count + 1).add(key);
-        return KVs.get(key);
-    }
-
-    public void putKV(String key, String value) {
-        if (cacheSize <= 0)
-            return;
+    public long getEvictions() {
+        return evictions;
+    }
+
+    public List<String> hotKeys(int count) {
+        ArrayList<String> keys = new ArrayList<>();
+        if (first == null) return keys;
 
-        if (KVs.containsKey(key)) {
+        Bucket last = first;
+        while (last.next != null) last = last.next;
 
-            if (value == null || value.equals("")) {
-                removeKV(key);
-                return;
+        // most frequent first, most recent first within a count
+        for (Bucket bucket = last; bucket != null && keys.size() < count; bucket = bucket.prev) {
+            for (Entry entry = bucket.tail; entry != null && keys.size() < count; entry = entry.prev) {
+                keys.add(entry.key);
             }
+        }
+        return keys;
+    }
+
+    public byte[] getKV(String key) {
+        Entry entry = KVs.get(key);
+        if (entry == null)
+            return null;
+        touch(entry);
+        return entry.value;
+    }
+
+    public void putKV(String key, byte[] value) {
+        Entry entry = KVs.get(key);
 
-            KVs.put(key, value);
+        if (value == null || value.length == 0 || !CacheLimits.fits(cacheSize, maxBytes, CacheLimits.weight(key, value))) {
+            if (entry != null) remove(entry);
+            return;
+        }
 
+        if (entry != null) {
+            bytes += value.length - entry.value.length;
+            entry.value = value;
             //do a counter increase after put.
-            getKV(key);
+            touch(entry);
+            evict(entry);
             return;
         }
 
-        if (KVs.size() >= cacheSize) {
-            String oldKey = list.get(min).iterator().next();
-            removeKV(oldKey);
+        entry = new Entry(key, value);
+        KVs.put(key, entry);
+        bytes += CacheLimits.weight(key, value);
+        evict(null);
+        if (first == null || first.count != 1) {
+            Bucket bucket = new Bucket(1);
+            bucket.next = first;
+            if (first != null) first.prev = bucket;
+            first = bucket;
         }
+        append(first, entry);
+        age();
+    }
 
-        KVs.put(key, value);
-        counts.put(key, 1);
-        min = 1;
-        list.get(1).add(key);
+    // evict the least frequent entries other than keep until the cache is within its bounds
+    private void evict(Entry keep) {
+        while (CacheLimits.over(cacheSize, maxBytes, KVs.size(), bytes)) {
+            Entry old = first.head;
+            if (old == keep) old = (old.next != null) ? old.next : first.next.head;
+            remove(old);
+            evictions++;
+        }
     }
 
-    private void removeKV(String key) {
-        KVs.remove(key);
-        int count = counts.remove(key);
-        list.get(count).remove(key);
+    private void remove(Entry entry) {
+        KVs.remove(entry.key);
+        bytes -= CacheLimits.weight(entry.key, entry.value);
+        unlink(entry);
+    }
+
+    /**
+     * @return  access count of the key, 0 if it is not cached
+     */
+    public long getCount(String key) {
+        Entry entry = KVs.get(key);
+        return (entry == null) ? 0 : entry.bucket.count;
+    }
+
+    // move the entry to the bucket of the next count
+    private void touch(Entry entry) {
+        Bucket from = entry.bucket;
+        Bucket to = from.next;
+        if (to == null || to.count != from.count + 1) {
+            to = new Bucket(from.count + 1);
+            to.prev = from;
+            to.next = from.next;
+            if (from.next != null) from.next.prev = to;
+            from.next = to;
+        }
+        unlink(entry);
+        append(to, entry);
+        age();
+    }
+
+    // halve every count, merging buckets that end up with the same count
+    private void age() {
+        long entries = (cacheSize > 0) ? cacheSize : Math.max(KVs.size(), minAgeEntries);
+        if (++accesses < agePeriod * entries)
+            return;
+        accesses = 0;
+
+        for (Bucket bucket = first; bucket != null; bucket = bucket.next) {
+            bucket.count = Math.max(1, bucket.count / 2);
+
+            Bucket prev = bucket.prev;
+            if (prev == null || prev.count != bucket.count)
+                continue;
+
+            // the lower bucket was counted less, so its entries stay in front
+            for (Entry entry = bucket.head; entry != null; entry = entry.next) {
+                entry.bucket = prev;
+            }
+            prev.tail.next = bucket.head;
+            bucket.head.prev = prev.tail;
+            prev.tail = bucket.tail;
+
+            prev.next = bucket.next;
+            if (bucket.next != null) bucket.next.prev = prev;
+            bucket = prev;
+        }
+    }
+
+    private void append(Bucket bucket, Entry entry) {
+        entry.bucket = bucket;
+        entry.next = null;
+        entry.prev = bucket.tail;
+        if (bucket.tail != null) bucket.tail.next = entry;
+        else bucket.head = entry;
+        bucket.tail = entry;
+    }
+
+    // take the entry out of its bucket and drop the bucket once it is empty
+    private void unlink(Entry entry) {
+        Bucket bucket = entry.bucket;
+        if (entry.prev != null) entry.prev.next = entry.next;
+        else bucket.head = entry.next;
+        if (entry.next != null) entry.next.prev = entry.prev;
+        else bucket.tail = entry.prev;
+        entry.prev = entry.next = null;
+
+        if (bucket.head != null)
+            return;
+
+        if (bucket.prev != null) bucket.prev.next = bucket.next;
+        else first = bucket.next;
+        if (bucket.next != null) bucket.next.prev = bucket.prev;
     }
-}
\ No newline at end of file
+}
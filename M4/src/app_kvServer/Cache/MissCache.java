@@ -0,0 +1,68 @@
+package app_kvServer.Cache;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keys recently found missing on another server.
+ * Every miss is remembered for a limited time only, since the key can be
+ * written on its server without this server noticing. The oldest misses are
+ * dropped once the bound is reached. Thread-safe.
+ */
+public class MissCache {
+
+    public static final long defaultTTL = 1000;
+
+    private final long ttl;
+
+    // key -> time the miss expires
+    private final LinkedHashMap<String, Long> misses;
+
+    public MissCache(final int cacheSize) {
+        this(cacheSize, defaultTTL);
+    }
+
+    /**
+     * @param ttl  milliseconds a miss is remembered
+     */
+    public MissCache(final int cacheSize, long ttl) {
+        this.ttl = ttl;
+        this.misses = new LinkedHashMap<String, Long>(16, 0.75f, false) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    /**
+     * @return  true if the key was found missing within the ttl
+     */
+    public synchronized boolean isMissing(String K) {
+        Long expires = misses.get(K);
+        if (expires == null) return false;
+        if (expires > System.currentTimeMillis()) return true;
+
+        misses.remove(K);
+        return false;
+    }
+
+    public synchronized void addMiss(String K) {
+        // re-insert so the order stays by expiry
+        misses.remove(K);
+        misses.put(K, System.currentTimeMillis() + ttl);
+    }
+
+    /**
+     * Forget the miss after the key was written
+     */
+    public synchronized void remove(String K) {
+        misses.remove(K);
+    }
+
+    public synchronized void clear() {
+        misses.clear();
+    }
+}
@@ -0,0 +1,239 @@
+package app_kvServer.Cache;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * LRU cache that keeps values outside the heap.
+ * Values are copied into 1MB direct buffers that are split into slots of one
+ * power-of-two size class each, like the slab files of KVDB. The heap only
+ * holds the keys and the packed location of every value.
+ * A chunk whose slots are all freed goes back to the pool and can serve
+ * another size class. Chunks are only allocated while the byte bound allows,
+ * after that the least recently used values are evicted to make room.
+ * The entry and byte bounds apply to keys and values as in the other caches.
+ */
+public class OffHeapCache implements KVCache {
+
+    private static final int chunkShift = 20;
+    private static final int chunkSize = 1 << chunkShift;
+
+    // slots of 256 B up to 128 KB
+    private static final int minSlotShift = 8;
+    private static final int classCount = 10;
+    private static final int maxSlotSize = 1 << (minSlotShift + classCount - 1);
+
+    private final int cacheSize;
+    private final long maxBytes;
+    private final int maxChunks;
+
+    // key -> chunk | offset | length
+    private final LinkedHashMap<String, Long> index = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+    private long evictions;
+
+    private final ArrayList<ByteBuffer> chunks = new ArrayList<>();
+    private int[] chunkClass = new int[16];
+    private int[] chunkUsed = new int[16];
+    private int[] chunkNext = new int[16];
+
+    // reassigning a chunk makes the free slots recorded for it before stale
+    private int[] chunkEpoch = new int[16];
+
+    private final ArrayList<Integer> emptyChunks = new ArrayList<>();
+    private final int[] current = new int[classCount];
+
+    // chunk | epoch | offset of freed slots
+    private final long[][] free = new long[classCount][16];
+    private final int[] freeCount = new int[classCount];
+
+    public OffHeapCache(int cacheSize) {
+        this(cacheSize, 0);
+    }
+
+    /**
+     * @param maxBytes  bound on bytes of keys and values, 0 for none.
+     *                  Direct memory is bounded by the same number rounded up to whole 1MB chunks.
+     */
+    public OffHeapCache(int cacheSize, long maxBytes) {
+        this.cacheSize = cacheSize;
+        this.maxBytes = maxBytes;
+        this.maxChunks = (maxBytes > 0) ? (int) Math.max(1, (maxBytes + chunkSize - 1) >> chunkShift) : Integer.MAX_VALUE;
+        Arrays.fill(current, -1);
+    }
+
+    public byte[] getKV(String K) {
+        Long location = index.get(K);
+        if (location == null) return null;
+
+        byte[] value = new byte[lengthOf(location)];
+        ByteBuffer chunk = chunks.get(chunkOf(location));
+        chunk.clear().position(offsetOf(location));
+        chunk.get(value);
+        return value;
+    }
+
+    public void putKV(String K, byte[] V) {
+        Long old = index.remove(K);
+        if (old != null) release(K, old);
+
+        if (V == null || V.length == 0 || V.length > maxSlotSize || !CacheLimits.fits(cacheSize, maxBytes, CacheLimits.weight(K, V)))
+            return;
+
+        int cls = sizeClass(V.length);
+        long slot = allocate(cls);
+        if (slot < 0) return;
+
+        int c = (int) (slot >>> 32);
+        int offset = (int) slot;
+        ByteBuffer chunk = chunks.get(c);
+        chunk.clear().position(offset);
+        chunk.put(V);
+
+        index.put(K, ((long) c << 38) | ((long) offset << 18) | V.length);
+        bytes += CacheLimits.weight(K, V);
+
+        while (CacheLimits.over(cacheSize, maxBytes, index.size(), bytes)) evictEldest();
+    }
+
+    public void clear() {
+        index.clear();
+        bytes = 0;
+
+        // keep the chunks for reuse
+        emptyChunks.clear();
+        for (int c = 0; c < chunks.size(); c++) {
+            chunkClass[c] = -1;
+            chunkUsed[c] = 0;
+            chunkEpoch[c]++;
+            emptyChunks.add(c);
+        }
+        Arrays.fill(current, -1);
+        Arrays.fill(freeCount, 0);
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    public long getEvictions() {
+        return evictions;
+    }
+
+    public List<String> hotKeys(int count) {
+        return CacheLimits.newestFirst(index.keySet(), count);
+    }
+
+    /**
+     * @return  bytes of direct memory held by the cache
+     */
+    public long getOffHeapBytes() {
+        return (long) chunks.size() * chunkSize;
+    }
+
+    /**
+     * @return  chunk in the upper and offset in the lower 32 bits, -1 if nothing can be evicted
+     */
+    private long allocate(int cls) {
+        int slotSize = 1 << (minSlotShift + cls);
+
+        while (true) {
+            // a freed slot of the class
+            while (freeCount[cls] > 0) {
+                long entry = free[cls][--freeCount[cls]];
+                int c = (int) (entry >>> 36);
+                if (chunkClass[c] == cls && (chunkEpoch[c] & 0xffff) == (int) ((entry >>> 20) & 0xffff))
+                    return take(c, (int) (entry & 0xfffff));
+            }
+
+            // the untouched end of the class's current chunk
+            int c = current[cls];
+            if (c >= 0 && chunkNext[c] + slotSize <= chunkSize) {
+                chunkNext[c] += slotSize;
+                return take(c, chunkNext[c] - slotSize);
+            }
+
+            c = newChunk();
+            if (c >= 0) {
+                chunkClass[c] = cls;
+                chunkNext[c] = 0;
+                current[cls] = c;
+                continue;
+            }
+
+            if (index.isEmpty()) return -1;
+            evictEldest();
+        }
+    }
+
+    private long take(int c, int offset) {
+        chunkUsed[c]++;
+        return ((long) c << 32) | offset;
+    }
+
+    // an empty chunk from the pool or a new one while the bound allows
+    private int newChunk() {
+        if (!emptyChunks.isEmpty()) return emptyChunks.remove(emptyChunks.size() - 1);
+        if (chunks.size() >= maxChunks) return -1;
+
+        int c = chunks.size();
+        chunks.add(ByteBuffer.allocateDirect(chunkSize));
+        if (c == chunkClass.length) {
+            chunkClass = Arrays.copyOf(chunkClass, c * 2);
+            chunkUsed = Arrays.copyOf(chunkUsed, c * 2);
+            chunkNext = Arrays.copyOf(chunkNext, c * 2);
+            chunkEpoch = Arrays.copyOf(chunkEpoch, c * 2);
+        }
+        return c;
+    }
+
+    private void evictEldest() {
+        Iterator<Map.Entry<String, Long>> it = index.entrySet().iterator();
+        Map.Entry<String, Long> eldest = it.next();
+        it.remove();
+        release(eldest.getKey(), eldest.getValue());
+        evictions++;
+    }
+
+    // free the slot of a value that was removed from the index
+    private void release(String K, long location) {
+        bytes -= K.length() + lengthOf(location);
+
+        int c = chunkOf(location);
+        int cls = chunkClass[c];
+        if (--chunkUsed[c] == 0) {
+            // the whole chunk is free, hand it to any class
+            chunkClass[c] = -1;
+            chunkEpoch[c]++;
+            if (current[cls] == c) current[cls] = -1;
+            emptyChunks.add(c);
+            return;
+        }
+
+        if (freeCount[cls] == free[cls].length) free[cls] = Arrays.copyOf(free[cls], freeCount[cls] * 2);
+        free[cls][freeCount[cls]++] = ((long) c << 36) | ((long) (chunkEpoch[c] & 0xffff) << 20) | offsetOf(location);
+    }
+
+    private static int sizeClass(int length) {
+        int cls = 0;
+        while ((1 << (minSlotShift + cls)) < length) cls++;
+        return cls;
+    }
+
+    private static int chunkOf(long location) {
+        return (int) (location >>> 38);
+    }
+
+    private static int offsetOf(long location) {
+        return (int) ((location >>> 18) & 0xfffff);
+    }
+
+    private static int lengthOf(long location) {
+        return (int) (location & 0x3ffff);
+    }
+}
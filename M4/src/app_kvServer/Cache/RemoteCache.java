@@ -0,0 +1,96 @@
+package app_kvServer.Cache;
+
+/**
+ * Results of requests forwarded to other servers.
+ * Values share the local cache and its bounds under keys with a prefix no
+ * client key can have. Every value and every miss expires after the ttl,
+ * owners invalidate them sooner when the key is written, the ttl bounds how
+ * long a lost invalidation can leave a stale value.
+ * Thread-safe if the shared cache is.
+ */
+public class RemoteCache {
+
+    // client keys never contain spaces
+    private static final String prefix = " ";
+
+    private final KVCache cache;
+    private final MissCache misses;
+    private final long ttl;
+
+    /**
+     * @param ttl  milliseconds values and misses are kept
+     */
+    public RemoteCache(KVCache cache, int missSize, long ttl) {
+        this.cache = cache;
+        this.misses = new MissCache(missSize, ttl);
+        this.ttl = ttl;
+    }
+
+    /**
+     * @return  true if a key of the shared cache holds a remote result
+     */
+    public static boolean isRemote(String cacheKey) {
+        return cacheKey.startsWith(prefix);
+    }
+
+    /**
+     * @return  the cached value, null if it is not cached or expired
+     */
+    public byte[] getKV(String K) {
+        byte[] stamped = cache.getKV(prefix + K);
+        if (stamped == null) return null;
+
+        long expires = 0;
+        for (int i = 0; i < 8; i++) expires = (expires << 8) | (stamped[i] & 0xff);
+        if (expires <= System.currentTimeMillis()) {
+            cache.putKV(prefix + K, null);
+            return null;
+        }
+
+        byte[] value = new byte[stamped.length - 8];
+        System.arraycopy(stamped, 8, value, 0, value.length);
+        return value;
+    }
+
+    /**
+     * Cache the value the owner returned, a null or empty value caches a miss
+     */
+    public void putKV(String K, byte[] V) {
+        if (V == null || V.length == 0) {
+            cache.putKV(prefix + K, null);
+            misses.addMiss(K);
+            return;
+        }
+
+        // expiry time in front of the value
+        byte[] stamped = new byte[V.length + 8];
+        long expires = System.currentTimeMillis() + ttl;
+        for (int i = 7; i >= 0; i--, expires >>>= 8) stamped[i] = (byte) expires;
+        System.arraycopy(V, 0, stamped, 8, V.length);
+
+        misses.remove(K);
+        cache.putKV(prefix + K, stamped);
+    }
+
+    /**
+     * @return  true if the owner recently reported the key missing
+     */
+    public boolean isMissing(String K) {
+        return misses.isMissing(K);
+    }
+
+    /**
+     * Forget everything known about the key
+     */
+    public void invalidate(String K) {
+        cache.putKV(prefix + K, null);
+        misses.remove(K);
+    }
+
+    /**
+     * Forget the misses, values go when the shared cache is cleared
+     */
+    public void clear() {
+        misses.clear();
+    }
+}
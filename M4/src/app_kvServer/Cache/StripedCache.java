@@ -0,0 +1,150 @@
+package app_kvServer.Cache;
+
+import app_kvServer.IKVServer.CacheStrategy;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Thread-safe cache made of independent stripes of one strategy.
+ * A key always maps to the same stripe and every stripe has its own lock,
+ * so connections working on different stripes do not wait for each other.
+ * Eviction follows the strategy within each stripe.
+ */
+public class StripedCache implements KVCache {
+
+    // smaller stripes would evict too far from the strategy's order
+    private static final int minStripeSize = 64;
+
+    // room for a few values of the largest size in every stripe
+    private static final long minStripeBytes = 1 << 20;
+
+    private final KVCache[] stripes;
+    private final int mask;
+
+    public StripedCache(CacheStrategy strategy, int cacheSize) {
+        this(strategy, cacheSize, 0);
+    }
+
+    /**
+     * @param maxBytes  bound on bytes of keys and values, 0 for none
+     */
+    public StripedCache(CacheStrategy strategy, int cacheSize, long maxBytes) {
+        this(strategy, cacheSize, maxBytes, Runtime.getRuntime().availableProcessors() * 4);
+    }
+
+    /**
+     * @param concurrency  upper bound on the number of stripes
+     */
+    public StripedCache(CacheStrategy strategy, int cacheSize, long maxBytes, int concurrency) {
+        int count = 1;
+        while (count * 2 <= concurrency
+                && (cacheSize <= 0 || (long) count * 2 * minStripeSize <= cacheSize)
+                && (maxBytes <= 0 || count * 2 * minStripeBytes <= maxBytes)) {
+            count *= 2;
+        }
+
+        stripes = new KVCache[count];
+        mask = count - 1;
+
+        // spread the remainder over the first stripes
+        for (int i = 0; i < count; i++) {
+            stripes[i] = create(strategy, cacheSize / count + ((i < cacheSize % count) ? 1 : 0),
+                    maxBytes / count + ((i < maxBytes % count) ? 1 : 0));
+        }
+    }
+
+    /**
+     * Create a single, not thread-safe cache of the strategy
+     */
+    public static KVCache create(CacheStrategy strategy, int cacheSize, long maxBytes) {
+        switch (strategy) {
+            case LRU:
+                return new LRUCache(cacheSize, maxBytes);
+            case FIFO:
+                return new FIFOCache(cacheSize, maxBytes);
+            case LFU:
+                return new LFUCache(cacheSize, maxBytes);
+            case TINYLFU:
+                return new TinyLFUCache(cacheSize, maxBytes);
+            case OFFHEAP:
+                return new OffHeapCache(cacheSize, maxBytes);
+            default:
+                throw new IllegalArgumentException("Invalid Cache Strategy!");
+        }
+    }
+
+    public int getStripeCount() {
+        return stripes.length;
+    }
+
+    private KVCache stripe(String K) {
+        int h = K.hashCode();
+        return stripes[(h ^ (h >>> 16)) & mask];
+    }
+
+    public byte[] getKV(String K) {
+        KVCache stripe = stripe(K);
+        synchronized (stripe) {
+            return stripe.getKV(K);
+        }
+    }
+
+    public void putKV(String K, byte[] V) {
+        KVCache stripe = stripe(K);
+        synchronized (stripe) {
+            stripe.putKV(K, V);
+        }
+    }
+
+    public long getBytes() {
+        long bytes = 0;
+        for (KVCache stripe : stripes) {
+            synchronized (stripe) {
+                bytes += stripe.getBytes();
+            }
+        }
+        return bytes;
+    }
+
+    public long getEvictions() {
+        long evictions = 0;
+        for (KVCache stripe : stripes) {
+            synchronized (stripe) {
+                evictions += stripe.getEvictions();
+            }
+        }
+        return evictions;
+    }
+
+    public List<String> hotKeys(int count) {
+        ArrayList<List<String>> lists = new ArrayList<>();
+        for (KVCache stripe : stripes) {
+            synchronized (stripe) {
+                lists.add(stripe.hotKeys(count));
+            }
+        }
+
+        // take the hottest of every stripe in turn
+        ArrayList<String> keys = new ArrayList<>();
+        for (int i = 0; keys.size() < count; i++) {
+            boolean more = false;
+            for (List<String> list : lists) {
+                if (i < list.size() && keys.size() < count) {
+                    keys.add(list.get(i));
+                    more = true;
+                }
+            }
+            if (!more) break;
+        }
+        return keys;
+    }
+
+    public void clear() {
+        for (KVCache stripe : stripes) {
+            synchronized (stripe) {
+                stripe.clear();
+            }
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package app_kvServer.Cache;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Window TinyLFU cache.
+ * New keys enter a small LRU window. A key pushed out of the window only
+ * enters the main cache if the frequency sketch has seen it more often than
+ * the key it would evict, so one-off scans cannot flush popular keys.
+ * The main cache is a segmented LRU: keys hit a second time move from the
+ * probation to the protected segment.
+ */
+public class TinyLFUCache implements KVCache {
+
+    // average entry assumed when sizing the sketch of a cache bounded only by bytes
+    private static final int sketchEntryBytes = 1024;
+
+    /**
+     * LRU ordered part of the cache with its own bounds
+     */
+    private static class Segment extends LinkedHashMap<String, byte[]> {
+        private static final long serialVersionUID = 1L;
+
+        final int cacheSize;
+        final long maxBytes;
+        long bytes;
+
+        Segment(int cacheSize, long maxBytes) {
+            super(16, 0.75f, true);
+            this.cacheSize = cacheSize;
+            this.maxBytes = maxBytes;
+        }
+
+        void putKV(String K, byte[] V) {
+            byte[] old = put(K, V);
+            bytes += CacheLimits.weight(K, V);
+            if (old != null) bytes -= CacheLimits.weight(K, old);
+        }
+
+        byte[] removeKV(String K) {
+            byte[] old = remove(K);
+            if (old != null) bytes -= CacheLimits.weight(K, old);
+            return old;
+        }
+
+        Map.Entry<String, byte[]> removeEldest() {
+            Iterator<Map.Entry<String, byte[]>> it = entrySet().iterator();
+            Map.Entry<String, byte[]> eldest = it.next();
+            it.remove();
+            bytes -= CacheLimits.weight(eldest.getKey(), eldest.getValue());
+            return eldest;
+        }
+
+        String eldestKey() {
+            return keySet().iterator().next();
+        }
+
+        boolean over() {
+            return CacheLimits.over(cacheSize, maxBytes, size(), bytes);
+        }
+
+        public void clear() {
+            super.clear();
+            bytes = 0;
+        }
+    }
+
+    private final int cacheSize;
+    private final long maxBytes;
+
+    private final int mainSize;
+    private final long mainBytes;
+
+    private final Segment window;
+    private final Segment probation;
+    private final Segment protect;
+
+    private final FrequencySketch sketch;
+
+    private long evictions;
+
+    public TinyLFUCache(int cacheSize) {
+        this(cacheSize, 0);
+    }
+
+    /**
+     * @param maxBytes  bound on bytes of keys and values, 0 for none
+     */
+    public TinyLFUCache(int cacheSize, long maxBytes) {
+        this.cacheSize = cacheSize;
+        this.maxBytes = maxBytes;
+
+        // 1% window, the main cache keeps 80% protected
+        int windowSize = (cacheSize > 0) ? Math.min(cacheSize, Math.max(1, cacheSize / 100)) : 0;
+        long windowBytes = maxBytes / 100;
+        mainSize = cacheSize - windowSize;
+        mainBytes = maxBytes - windowBytes;
+
+        window = new Segment(windowSize, windowBytes);
+        probation = new Segment(0, 0);
+        protect = new Segment(mainSize * 8 / 10, mainBytes * 8 / 10);
+
+        long entries = Math.max(cacheSize, maxBytes / sketchEntryBytes);
+        sketch = new FrequencySketch((int) Math.min(entries, 1 << 24));
+    }
+
+    public byte[] getKV(String K) {
+        sketch.increment(K);
+
+        byte[] value = window.get(K);
+        if (value != null) return value;
+
+        value = protect.get(K);
+        if (value != null) return value;
+
+        value = probation.removeKV(K);
+        if (value != null) promote(K, value);
+        return value;
+    }
+
+    public void putKV(String K, byte[] V) {
+        if (V == null || V.length == 0 || !CacheLimits.fits(cacheSize, maxBytes, CacheLimits.weight(K, V))) {
+            window.removeKV(K);
+            probation.removeKV(K);
+            protect.removeKV(K);
+            return;
+        }
+
+        sketch.increment(K);
+
+        if (window.containsKey(K)) {
+            window.putKV(K, V);
+        } else if (protect.containsKey(K)) {
+            protect.putKV(K, V);
+            trimMain();
+        } else if (probation.removeKV(K) != null) {
+            promote(K, V);
+        } else {
+            window.putKV(K, V);
+        }
+
+        while (window.over() && !window.isEmpty()) {
+            Map.Entry<String, byte[]> candidate = window.removeEldest();
+            admit(candidate.getKey(), candidate.getValue());
+        }
+    }
+
+    public void clear() {
+        window.clear();
+        probation.clear();
+        protect.clear();
+        sketch.clear();
+    }
+
+    public long getBytes() {
+        return window.bytes + probation.bytes + protect.bytes;
+    }
+
+    public long getEvictions() {
+        return evictions;
+    }
+
+    public List<String> hotKeys(int count) {
+        ArrayList<String> keys = CacheLimits.newestFirst(protect.keySet(), count);
+        keys.addAll(CacheLimits.newestFirst(probation.keySet(), count - keys.size()));
+        keys.addAll(CacheLimits.newestFirst(window.keySet(), count - keys.size()));
+        return keys;
+    }
+
+    /**
+     * @return  true if the key is in the main cache rather than the window
+     */
+    public boolean inMain(String K) {
+        return probation.containsKey(K) || protect.containsKey(K);
+    }
+
+    // move a key hit in probation to protected, demoting the oldest protected keys
+    private void promote(String K, byte[] V) {
+        protect.putKV(K, V);
+        while (protect.over() && protect.size() > 1) {
+            Map.Entry<String, byte[]> demoted = protect.removeEldest();
+            probation.putKV(demoted.getKey(), demoted.getValue());
+        }
+        trimMain();
+    }
+
+    // let the key leaving the window into the main cache while it is more popular than the victims
+    private void admit(String K, byte[] V) {
+        if (!CacheLimits.fits(mainSize, mainBytes, CacheLimits.weight(K, V))) {
+            evictions++;
+            return;
+        }
+
+        probation.putKV(K, V);
+
+        while (mainOver()) {
+            Segment segment = probation;
+            String victim = probation.eldestKey();
+            if (victim.equals(K)) {
+                segment = protect;
+                victim = protect.eldestKey();
+            }
+
+            if (sketch.frequency(K) <= sketch.frequency(victim)) {
+                probation.removeKV(K);
+                evictions++;
+                return;
+            }
+            segment.removeKV(victim);
+            evictions++;
+        }
+    }
+
+    // evict least recently used keys after a value grew
+    private void trimMain() {
+        while (mainOver()) {
+            if (!probation.isEmpty()) probation.removeEldest();
+            else protect.removeEldest();
+            evictions++;
+        }
+    }
+
+    private boolean mainOver() {
+        return CacheLimits.over(mainSize, mainBytes, probation.size() + protect.size(), probation.bytes + protect.bytes);
+    }
+}
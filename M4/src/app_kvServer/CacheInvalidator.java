@@ -0,0 +1,27 @@
+package app_kvServer;
+
+import java.util.ArrayList;
+
+public class CacheInvalidator implements Runnable {
+
+    private KVServerWatcher zkWatcher = null;
+
+    private String key;
+
+    private ArrayList<String> readers;
+
+    public CacheInvalidator(KVServerWatcher zkWatcher, String key, ArrayList<String> readers) {
+        this.zkWatcher = zkWatcher;
+        this.key = key;
+        this.readers = readers;
+    }
+
+
+    @Override
+    public void run() {
+
+        for (String name : readers) {
+            zkWatcher.invalidate(key, name);
+        }
+    }
+}
@@ -11,12 +11,15 @@ import common.module.CommunicationModule;
 import ecs.ECSNode;
 import org.apache.log4j.Logger;
 
-import javax.xml.bind.DatatypeConverter;
 import java.io.IOException;
 import java.lang.reflect.Type;
 import java.net.Socket;
 import java.security.MessageDigest;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.locks.ReentrantLock;
 
 
 /**
@@ -36,6 +39,17 @@ public class ClientConnection implements Runnable {
     private KVServer server;
     private boolean isOpen;
 
+    // pipelined requests being answered, beyond this the connection stops reading
+    private static final int maxInFlight = 128;
+    private final Semaphore inFlight = new Semaphore(maxInFlight);
+
+    // requests of one key go to the same stripe and are answered in order
+    private static final int stripes = 8;
+    private final Stripe[] stripe = new Stripe[stripes];
+
+    // responses of pipelined requests are sent from several threads
+    private final ReentrantLock sendLock = new ReentrantLock();
+
     /**
      * Constructs a new CientConnection object for a given TCP socket.
      *
@@ -46,6 +60,7 @@ public class ClientConnection implements Runnable {
         gson = new Gson();
         this.server = server;
         isOpen = true;
+        for (int i = 0; i < stripes; i++) stripe[i] = new Stripe();
     }
 
     /**
@@ -57,57 +72,20 @@ public class ClientConnection implements Runnable {
 
             communicationModule.setStream();
 
-            communicationModule.sendMessage(
-                    "Connection to KVServer " + server.getName() + " established: "
-                            + server.getHostname() + "/"
-                            + server.getPort());
+            communicationModule.sendMessage(greeting());
 
             while (isOpen) {
 
                 try {
-                    String Msg = communicationModule.receiveMessage();
-
-                    KVServer.KVServerState serverState = server.getState();
-
-                    KVMessage response = new Message(KVMessage.StatusType.PUT_ERROR, "", "");
-
-
-                    if (serverState == KVServer.KVServerState.STOPPED)
-
-                        response = new Message(KVMessage.StatusType.SERVER_STOPPED, "", "");
-
-                    else if (serverState == KVServer.KVServerState.LOCKED)
-
-                        response = new Message(KVMessage.StatusType.SERVER_WRITE_LOCK, "", "");
-
-                    else {
-                        //parse the msg into json
-                        KVMessage msg = gson.fromJson(Msg, Message.class);
-
-                        //check msg if valid
-                        switch (msg.getStatus()) {
-                            case GET:
-                                try {
-                                    response = get(msg.getKey(), msg);
-                                } catch (Exception e) {
-                                    logger.error("Error! Unable to execute GET operation " + e);
-                                    response = new Message(KVMessage.StatusType.GET_ERROR, msg.getKey(), msg.getValue());
-                                }
-                                break;
-                            case PUT:
-                                try {
-                                    response = put(msg.getKey(), msg.getValue(), msg);
-                                } catch (Exception e) {
-                                    logger.error("Error! Unable to execute PUT operation " + e);
-                                    response = new Message(KVMessage.StatusType.PUT_ERROR, msg.getKey(), msg.getValue());
-                                }
-                                break;
-                            default:
-                                break;
-                        }
+                    KVMessage request = communicationModule.receiveKVMessage();
+
+                    //requests with an id are answered as soon as they are done
+                    if (request != null && request.getId() != 0) {
+                        pipeline(request);
+                        continue;
                     }
 
-                    communicationModule.sendMessage(gson.toJson(response));
+                    send(process(request));
                 } catch (JsonSyntaxException e) {
                     logger.error("Invalid Message syntax " + e.getMessage());
                 /* connection either terminated by the client or lost due to
@@ -127,9 +105,154 @@ public class ClientConnection implements Runnable {
             } catch (IOException e) {
                 logger.error("Unable to close connection!");
             }
+            server.removeConnection(this);
+        }
+    }
+
+    private void send(KVMessage response) throws IOException {
+        sendLock.lock();
+        try {
+            communicationModule.sendKVMessage(response);
+
+            //the agreement itself still goes in the old format
+            if (response.getStatus() == KVMessage.StatusType.BINARY_SUCCESS)
+                communicationModule.setBinary(true);
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    // answer the request on another thread, stop reading while too many are in flight
+    private void pipeline(KVMessage request) throws IOException {
+        inFlight.acquireUninterruptibly();
+        String key = request.getKey();
+        stripe[(key == null ? 0 : key.hashCode() & 0x7fffffff) % stripes].add(request);
+    }
+
+    /**
+     * Pipelined requests of a few keys, answered one after another by one task at a time
+     */
+    private class Stripe implements Runnable {
+        private final ArrayDeque<KVMessage> requests = new ArrayDeque<>();
+        private boolean busy;
+
+        void add(KVMessage request) throws IOException {
+            synchronized (this) {
+                requests.add(request);
+                if (busy) return;
+                busy = true;
+            }
+
+            try {
+                server.execute(this);
+            } catch (RejectedExecutionException e) {
+                synchronized (this) {
+                    inFlight.release(requests.size());
+                    requests.clear();
+                    busy = false;
+                }
+                throw new IOException("Server is closing");
+            }
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                KVMessage request;
+                synchronized (this) {
+                    request = requests.poll();
+                    if (request == null) {
+                        busy = false;
+                        return;
+                    }
+                }
+
+                try {
+                    send(process(request));
+                } catch (Exception e) {
+                    logger.error("Error! Unable to answer request " + request.getId() + " " + e);
+                } finally {
+                    inFlight.release();
+                }
+            }
         }
     }
 
+    /**
+     * @return  first message a client receives after connecting
+     */
+    public String greeting() {
+        return "Connection to KVServer " + server.getName() + " established: "
+                + server.getHostname() + "/"
+                + server.getPort();
+    }
+
+    /**
+     * Answer one request of the client
+     *
+     * @param Msg  request as received, json of a message
+     * @throws JsonSyntaxException  when the request is not a message
+     */
+    public KVMessage process(String Msg) {
+        //parse the msg into json
+        return process(gson.fromJson(Msg, Message.class));
+    }
+
+    /**
+     * Answer one request of the client
+     */
+    public KVMessage process(KVMessage msg) {
+
+        KVServer.KVServerState serverState = server.getState();
+
+        KVMessage response = new Message(KVMessage.StatusType.PUT_ERROR, "", "");
+
+        //admin and protocol requests are answered in every state
+        if (msg != null && msg.getStatus() == KVMessage.StatusType.STATS)
+
+            response = new Message(KVMessage.StatusType.STATS_SUCCESS, server.getName(), gson.toJson(server.getCacheStats()));
+
+        else if (msg != null && msg.getStatus() == KVMessage.StatusType.BINARY)
+
+            response = new Message(KVMessage.StatusType.BINARY_SUCCESS, "", "");
+
+        else if (serverState == KVServer.KVServerState.STOPPED)
+
+            response = new Message(KVMessage.StatusType.SERVER_STOPPED, "", "");
+
+        else if (serverState == KVServer.KVServerState.LOCKED)
+
+            response = new Message(KVMessage.StatusType.SERVER_WRITE_LOCK, "", "");
+
+        else {
+            //check msg if valid
+            switch (msg.getStatus()) {
+                case GET:
+                    try {
+                        response = get(msg.getKey(), msg);
+                    } catch (Exception e) {
+                        logger.error("Error! Unable to execute GET operation " + e);
+                        response = new Message(KVMessage.StatusType.GET_ERROR, msg.getKey(), msg.getValue());
+                    }
+                    break;
+                case PUT:
+                    try {
+                        response = put(msg.getKey(), msg.getValueBytes(), msg);
+                    } catch (Exception e) {
+                        logger.error("Error! Unable to execute PUT operation " + e);
+                        response = new Message(KVMessage.StatusType.PUT_ERROR, msg.getKey(), msg.getValue());
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        //the client matches pipelined responses by the id of their request
+        if (msg != null && response != null) response.setId(msg.getId());
+        return response;
+    }
+
     public void stop() {
         isOpen = false;
         try {
@@ -164,15 +287,15 @@ public class ClientConnection implements Runnable {
                 return server.globalService(message);
         }
 
-        String value = server.getKV(key);
+        byte[] value = server.getKVBytes(key);
         if (value == null)
             return new Message(KVMessage.StatusType.GET_ERROR, key, "");
         else
             return new Message(KVMessage.StatusType.GET_SUCCESS, key, value);
     }
 
-    public KVMessage put(String key, String value, KVMessage message) throws Exception {
-        if (key.equals("") || key.contains(" ") || key.length() > 20 || (value != null && value.length() > 120000)) {
+    public KVMessage put(String key, byte[] value, KVMessage message) throws Exception {
+        if (key.equals("") || key.contains(" ") || key.length() > 20 || (value != null && value.length > 120000)) {
             return new Message(KVMessage.StatusType.PUT_ERROR, key, value);
         }
 
@@ -186,9 +309,9 @@ public class ClientConnection implements Runnable {
 
 
         //case when deleting
-        if (value == null || value.equals("")) {
+        if (value == null || value.length == 0) {
             if (server.inStorage(key)) {
-                server.putKV(key, null);
+                server.putKVBytes(key, null);
                 return new Message(KVMessage.StatusType.DELETE_SUCCESS, key, value);
             }
             return new Message(KVMessage.StatusType.DELETE_ERROR, key, value);
@@ -196,12 +319,12 @@ public class ClientConnection implements Runnable {
 
         //case when update
         if (server.inStorage(key)) {
-            server.putKV(key, value);
+            server.putKVBytes(key, value);
             return new Message(KVMessage.StatusType.PUT_UPDATE, key, value);
         }
 
         //case when create
-        server.putKV(key, value);
+        server.putKVBytes(key, value);
         return new Message(KVMessage.StatusType.PUT_SUCCESS, key, value);
     }
 
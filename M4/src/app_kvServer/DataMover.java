@@ -6,11 +6,11 @@ public class DataMover implements Runnable {
 
     private KVServerWatcher zkWatcher = null;
 
-    private HashMap<String, String> map;
+    private HashMap<String, byte[]> map;
 
     private KVServer server;
 
-    public DataMover(KVServerWatcher zkWatcher, HashMap<String, String> map, KVServer server) {
+    public DataMover(KVServerWatcher zkWatcher, HashMap<String, byte[]> map, KVServer server) {
         this.zkWatcher = zkWatcher;
         this.map = map;
         this.server = server;
@@ -3,7 +3,6 @@ package app_kvServer;
 import common.messages.MetaData;
 
 import org.apache.log4j.Logger;
-import sun.rmi.runtime.Log;
 
 public class ECSCommandExcutor implements Runnable {
 
@@ -0,0 +1,65 @@
+package app_kvServer;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hottest cached keys of a server, saved so a restarted server can load
+ * their values before the first client asks for them.
+ * One key per line, hottest first.
+ */
+public class HotKeySnapshot {
+
+    private final File file;
+
+    public HotKeySnapshot(String name) {
+        File root = new File("KVCACHE");
+        if (!root.exists()) root.mkdir();
+
+        file = new File(root, name);
+    }
+
+    /**
+     * Replace the snapshot, a crash while saving leaves the previous one
+     */
+    public synchronized void save(List<String> keys) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+
+        try (BufferedWriter out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8))) {
+            for (String key : keys) {
+                out.write(key);
+                out.newLine();
+            }
+        }
+
+        if (!tmp.renameTo(file)) {
+            file.delete();
+            if (!tmp.renameTo(file)) throw new IOException("Cannot replace " + file);
+        }
+    }
+
+    /**
+     * @return  keys of the last snapshot, hottest first, none if there is no snapshot
+     */
+    public synchronized List<String> load() throws IOException {
+        ArrayList<String> keys = new ArrayList<>();
+        if (!file.exists()) return keys;
+
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String key;
+            while ((key = in.readLine()) != null) {
+                if (!key.isEmpty()) keys.add(key);
+            }
+        }
+        return keys;
+    }
+}
@@ -0,0 +1,51 @@
+package app_kvServer;
+
+import java.io.IOException;
+import java.util.HashMap;
+
+public interface IKVDB {
+
+    /**
+     * Put the key-value pair into storage, a null or empty value deletes the key.
+     * Values are stored as the given bytes.
+     * @throws IOException
+     *      when the storage files cannot be written
+     */
+    public void putKV(String K, byte[] V) throws IOException;
+
+    /**
+     * Get the value associated with the key
+     * @return  value associated with key, null if key is not in storage
+     * @throws IOException
+     *      when the storage files cannot be read
+     */
+    public byte[] getKV(String K) throws IOException;
+
+    /**
+     * Check if the key is in storage without reading its value
+     * @return  true if key is in storage
+     */
+    public boolean contains(String K);
+
+    /**
+     * Get all key-value pairs whose key hash is within the given range
+     * @param range  {from, to} hash range, wraps around when from >= to
+     */
+    public HashMap<String, byte[]> getRangeKV(String[] range) throws IOException;
+
+    /**
+     * Remove all key-value pairs whose key hash is within the given range
+     * @param range  {from, to} hash range, wraps around when from >= to
+     */
+    public void removeRangeKV(String[] range) throws IOException;
+
+    /**
+     * Delete every key-value pair and recreate empty storage
+     */
+    public void clear() throws IOException;
+
+    /**
+     * Release the files held by the storage
+     */
+    public void close() throws IOException;
+}
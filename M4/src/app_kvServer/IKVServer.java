@@ -5,7 +5,22 @@ public interface IKVServer {
         None,
         LRU,
         LFU,
-        FIFO
+        FIFO,
+        TINYLFU,
+        OFFHEAP
+    };
+
+    public enum StorageStrategy {
+        BLOCK,
+        MMAP,
+        LOG,
+        WRITEBEHIND
+    };
+
+    public enum ConnectionMode {
+        THREAD,
+        NIO,
+        VIRTUAL
     };
 
     /**
@@ -32,6 +47,18 @@ public interface IKVServer {
      */
     public int getCacheSize();
 
+    /**
+     * Get the bound on bytes of cached keys and values
+     * @return  cache bytes, 0 if the cache is bounded by entries only
+     */
+    public long getCacheBytes();
+
+    /**
+     * Get the storage strategy of the server
+     * @return  storage strategy
+     */
+    public StorageStrategy getStorageStrategy();
+
     /**
      * Check if key is in storage.
      * NOTE: does not modify any other properties
@@ -61,6 +88,21 @@ public interface IKVServer {
      */
     public void putKV(String key, String value) throws Exception;
 
+    /**
+     * Get the value bytes associated with the key, stored verbatim
+     * @return  value associated with key
+     * @throws Exception
+     *      when key not in the key range of the server
+     */
+    public byte[] getKVBytes(String key) throws Exception;
+
+    /**
+     * Put the key and value bytes into storage, a null or empty value deletes the key
+     * @throws Exception
+     *      when key not in the key range of the server
+     */
+    public void putKVBytes(String key, byte[] value) throws Exception;
+
     /**
      * Clear the local cache of the server
      */
@@ -1,101 +1,241 @@
 package app_kvServer;
 
 
-import ecs.IECSNode;
+import app_kvServer.Storage.KeyIndex;
+import app_kvServer.Storage.RangeIndex;
+import app_kvServer.Storage.SlabClass;
+import app_kvServer.Storage.WriteAheadLog;
 import org.apache.log4j.Logger;
 
-import javax.xml.bind.DatatypeConverter;
 import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
-import static java.lang.Math.abs;
+public class KVDB implements IKVDB {
 
+    private Logger logger = Logger.getRootLogger();
 
-public class KVDB {
+    // serve block accesses from memory mappings instead of channel reads
+    private boolean mapped;
 
-    private Logger logger = Logger.getRootLogger();
+    /**
+     * one block contains:
+     * 1 byte for occupied flag, 1 byte for generation;
+     * 4 bytes for key size, 4 bytes for value size;
+     * 20 bytes for key, value bytes up to the slot size;
+     */
+    private static final int headerSize = 1 + 1 + 4 + 4 + 20;
+
+    // largest value, fills a whole block of the top class
+    private static final int maxValueSize = 120000;
+
+    // longest key, fills the key bytes of the header
+    private static final int maxKeySize = 20;
+
+    /**
+     * slot size of each size class, a value goes into the smallest class it fits.
+     * The top class is the original fixed block stored in files db0, db1, ...
+     */
+    private static final int[] slotSizes = {64, 256, 1024, 4096, 16384, 65536, headerSize + maxValueSize};
 
-    ArrayList<ReentrantReadWriteLock> lockList;
+    // small classes get 4MB files, the top class keeps 5000 blocks per file
+    private static final int slabFileSize = 4 * 1024 * 1024;
+    private static final int fileBlock = 5000;
 
-    // constant fileSize, # of blocks in a file
-    private static final long fileBlock = 5000;
+    private SlabClass[] slabs;
 
+    // the index doubles above this fraction of used slots, the slab files grow on demand
+    private double loadFactor;
 
     /**
-     * one block contains:
-     * 1 byte for occupied flag, 1 byte for grey flag;
-     * 4 bytes for key size, 4 bytes for value size;
-     * 20 bytes for key, 120000 bytes for value;
+     * key => size class (bits 60-62), slot (bits 20-59) and value size (bits 0-19),
+     * rebuilt from the block headers at startup
      */
-    private static final long blockSize = 1 + 1 + 4 + 4 + 20 + 120000;
+    private KeyIndex index;
 
-    private int fileNumber;
+    // keys in hash ring order, for range handoff
+    private RangeIndex ring;
 
-    private String name;
+    // writers take the write lock, readers share the read lock
+    private final ReentrantReadWriteLock tableLock = new ReentrantReadWriteLock();
 
-    private String file_path;
+    // every write is logged and forced before it reaches the slab files
+    private WriteAheadLog wal;
 
-    public KVDB(String name) throws IOException {
+    // force the slab files and empty the log once it grows past this
+    private static final long checkpointSize = 16 * 1024 * 1024;
 
-        this.name = name;
-        file_path = "KVDB/" + this.name + "/db";
+    // writes waiting for the next group commit, guarded by commitLock
+    private final ArrayList<Write> pending = new ArrayList<>();
 
-        initializeDB();
+    // a thread is writing a batch, or owns the log for clear and close
+    private boolean committing;
+
+    // a lock rather than a monitor, so waiting writers do not pin the carrier of a virtual thread
+    private final ReentrantLock commitLock = new ReentrantLock();
+    private final Condition committed = commitLock.newCondition();
+
+    private static class Write {
+        final WriteAheadLog.Record record;
+        boolean done;
+        IOException error;
+
+        Write(WriteAheadLog.Record record) {
+            this.record = record;
+        }
     }
 
+    // pack a class once this fraction of the slots below its highest used one is free
+    private static final double compactRatio = 0.25;
 
-    private void initializeDB() throws IOException {
+    // seconds between fragmentation checks
+    private static final long compactInterval = 60;
 
-        lockList = new ArrayList<>();
+    // blocks moved per hold of the table lock
+    private static final int compactBatch = 256;
 
-        File root = new File("KVDB");
-        if (!root.exists()) root.mkdir();
+    /**
+     * write-behind: writes are acknowledged once logged and wait here for the
+     * flusher, newest write per key, so rewrites of a key cost one block write.
+     * Guarded by the table lock.
+     */
+    private final boolean writeBehind;
+    private final LinkedHashMap<String, WriteAheadLog.Record> dirty = new LinkedHashMap<>();
+
+    // milliseconds between flushes, writes applied per hold of the table lock
+    private static final long flushInterval = 1000;
+    private static final int flushBatch = 1024;
+
+    // writers apply the dirty writes themselves beyond this
+    private static final int maxDirty = 64 * 1024;
 
-        File DB = new File("KVDB/" + name);
+    private ScheduledExecutorService compactor;
 
-        if (!DB.exists() || DB.list().length == 0) {
+    private volatile boolean closed;
+
+    private String name;
+
+    private File dir;
+
+    public KVDB(String name) throws IOException {
+        this(name, false);
+    }
 
-            DB.mkdir();
-            //Create two files into DB directory
-            for (int i = 0; i < 2; i++) {
-                //Create a file with name DB#
-                File DBfile = new File(file_path + String.valueOf(i));
-                ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    public KVDB(String name, boolean mapped) throws IOException {
+        this(name, mapped, false);
+    }
 
-                DBfile.createNewFile();
+    /**
+     * @param writeBehind  acknowledge writes once they are logged and apply them
+     *                     to the block files in the background
+     */
+    public KVDB(String name, boolean mapped, boolean writeBehind) throws IOException {
+        this(name, mapped, writeBehind, KeyIndex.defaultLoad);
+    }
 
-                //Create RandomAccessFile associate with the file
-                RandomAccessFile file = new RandomAccessFile(DBfile, "rw");
+    /**
+     * @param loadFactor  fraction of used index slots that triggers an index rehash
+     */
+    public KVDB(String name, boolean mapped, boolean writeBehind, double loadFactor) throws IOException {
 
-                //Set the file length to blockSize * fileSize
-                file.setLength(blockSize * fileBlock);
+        this.name = name;
+        this.loadFactor = loadFactor;
+        this.mapped = mapped;
+        this.writeBehind = writeBehind;
+        dir = new File("KVDB/" + this.name);
 
-                //close file
-                file.close();
+        initializeDB();
 
-                //Add lock to the locks list
-                lockList.add(lock);
+        compactor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "compactor-" + KVDB.this.name);
+                t.setDaemon(true);
+                return t;
             }
+        });
+        compactor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (!closed && isFragmented()) compact();
+                } catch (Exception e) {
+                    logger.error("Cannot compact " + KVDB.this.name + " " + e);
+                }
+            }
+        }, compactInterval, compactInterval, TimeUnit.SECONDS);
+
+        if (writeBehind) {
+            compactor.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (!closed) flush();
+                    } catch (Exception e) {
+                        logger.error("Cannot flush " + KVDB.this.name + " " + e);
+                    }
+                }
+            }, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+        }
+    }
 
-            fileNumber = 2;
 
-        } else {
+    private void initializeDB() throws IOException {
+
+        File root = new File("KVDB");
+        if (!root.exists()) root.mkdir();
+
+        if (!dir.exists()) dir.mkdir();
 
-            for (int i = 0; i < DB.list().length; i++) {
+        index = new KeyIndex(1024, loadFactor);
+        slabs = new SlabClass[slotSizes.length];
 
-                ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
-                lockList.add(lock);
+        SlabClass.Loader loader = new SlabClass.Loader() {
+            @Override
+            public void load(SlabClass slab, long slot, ByteBuffer header) throws IOException {
+                loadBlock(slab, slot, header);
             }
-            fileNumber = DB.list().length;
+        };
+
+        //rebuild the index from the occupied blocks of every class
+        for (int c = 0; c < slotSizes.length; c++) {
+            int last = slotSizes.length - 1;
+            slabs[c] = (c == last)
+                    ? new SlabClass(dir, "db", slotSizes[c], fileBlock, mapped)
+                    : new SlabClass(dir, "slab" + slotSizes[c] + "-", slotSizes[c], slabFileSize / slotSizes[c], mapped);
+            slabs[c].open(headerSize, loader);
+        }
+
+        ring = new RangeIndex();
+        ring.addAll(index.keys());
 
+        //redo writes that may not have reached the slab files before a crash
+        wal = new WriteAheadLog(new File(dir, "wal"));
+        List<WriteAheadLog.Record> records = wal.recover();
+        for (WriteAheadLog.Record record : records) {
+            apply(record);
+        }
+        if (!records.isEmpty()) {
+            logger.info("Replayed " + records.size() + " logged writes of " + name);
+            checkpoint();
         }
 
+        logger.info("Loaded " + index.size() + " keys of " + name);
     }
 
 
@@ -103,323 +243,564 @@ public class KVDB {
 
         logger.info("Delete directory... ");
 
+        lockCommit();
+        tableLock.writeLock().lock();
+        try {
+            wal.close();
+            for (SlabClass slab : slabs) slab.close();
+            dirty.clear();
+
+            for (File file : dir.listFiles()) file.delete();
+            dir.delete();
+
+            logger.info("Done Delete directory... ");
+            initializeDB();
+        } finally {
+            tableLock.writeLock().unlock();
+            unlockCommit();
+        }
+    }
 
-        for (int i = 0; i < fileNumber; i++) {
-            lockList.get(i).writeLock().lock();
 
-            File DBfile = new File(file_path + String.valueOf(i));
-            DBfile.delete();
+    /**
+     * Returns once the write is forced to the log and applied, concurrent
+     * writes share a single force. In write-behind mode the write is only
+     * visible to readers by then and reaches the block files with a later flush.
+     */
+    public void putKV(String K, byte[] V) throws IOException {
 
-            lockList.get(i).writeLock().unlock();
-            ;
-        }
+        if (K.getBytes(StandardCharsets.ISO_8859_1).length > maxKeySize)
+            throw new IOException("Key " + K + " is too long");
 
-        File DB = new File("KVDB/" + name);
-        DB.delete();
+        if (V == null || V.length == 0) {
+            if (!contains(K)) return;
+            V = null;
+        } else if (V.length > maxValueSize) {
+            throw new IOException("Value of " + K + " is too large");
+        }
 
-        logger.info("Done Delete directory... ");
-        initializeDB();
+        commit(Collections.singletonList(new WriteAheadLog.Record(K, V)));
     }
 
+    // table write lock must be held
+    private void apply(WriteAheadLog.Record record) throws IOException {
 
-    public void putKV(String K, String V) throws IOException {
-
-        if (updateKV(K, V)) return;
+        String K = record.key;
+        byte[] value = record.value;
 
-        long blockIndex = getHash(K);
-
-        long count = NumberOfTotalBlock();
-        while (count > 0) {
+        if (value == null) {
+            if (index.get(K) >= 0) removeKey(K);
+            return;
+        }
 
+        int c = sizeClass(value.length);
+        long entry = index.get(K);
 
-            //check if current block is occupied
-            if (!checkBlock(blockIndex, true)) {
-                writeKeyValueAtBlock(blockIndex, K, V);
-                return;
-            }
+        //same class, update in place
+        if (entry >= 0 && classOf(entry) == c) {
+            writeBlock(c, slotOf(entry), K, value, readGeneration(entry));
+            index.put(K, pack(c, slotOf(entry), value.length));
+            return;
+        }
 
-            if (blockIndex == NumberOfTotalBlock() - 1) blockIndex = 0;
-            else blockIndex++;
+        //new slot, an older copy in another class loses to the newer generation
+        long slot = slabs[c].allocate();
+        int generation = (entry >= 0) ? readGeneration(entry) + 1 : 1;
+        writeBlock(c, slot, K, value, generation);
+        index.put(K, pack(c, slot, value.length));
 
-            count--;
+        if (entry >= 0) {
+            clearBlock(entry);
+        } else {
+            ring.add(K);
         }
-        // do not have enough space
-        // need to extend the files
-        // TODO need to extend the file system
-        return;
     }
 
-    private boolean updateKV(String K, String V) throws IOException {
+    /**
+     * Group commit: the first waiting thread takes every pending write,
+     * logs and forces them together and applies them in log order
+     */
+    private void commit(List<WriteAheadLog.Record> records) throws IOException {
+
+        ArrayList<Write> writes = new ArrayList<>();
+        for (WriteAheadLog.Record record : records) writes.add(new Write(record));
+        Write last = writes.get(writes.size() - 1);
 
-        long blockIndex = getHash(K);
+        ArrayList<Write> batch = null;
 
-        long count = NumberOfTotalBlock();
-        while (count > 0) {
+        commitLock.lock();
+        try {
+            pending.addAll(writes);
 
-            //check if current block is right
-            if (getKeyAtBlock(blockIndex).equals(K)) {
-                writeKeyValueAtBlock(blockIndex, K, V);
-                return true;
+            //another thread may commit our writes along with its own
+            while (committing && !last.done) {
+                committed.awaitUninterruptibly();
             }
 
-            //check if current block is clean
-            if (!checkBlock(blockIndex, false)) {
-                return false;
+            if (!last.done) {
+                committing = true;
+                batch = new ArrayList<>(pending);
+                pending.clear();
             }
+        } finally {
+            commitLock.unlock();
+        }
 
-            if (blockIndex == NumberOfTotalBlock() - 1) blockIndex = 0;
-            else blockIndex++;
+        if (batch != null) {
+            IOException error = null;
+            try {
+                writeBatch(batch);
+            } catch (IOException e) {
+                logger.error("Cannot commit " + batch.size() + " writes of " + name + " " + e);
+                error = e;
+            }
 
-            count--;
+            commitLock.lock();
+            try {
+                for (Write write : batch) {
+                    write.error = error;
+                    write.done = true;
+                }
+                committing = false;
+                committed.signalAll();
+            } finally {
+                commitLock.unlock();
+            }
         }
-        // did not find the key
-        return false;
-    }
 
+        for (Write write : writes) {
+            if (write.error != null) throw write.error;
+        }
+    }
 
-    public String getKV(String K) throws IOException {
+    private void writeBatch(List<Write> batch) throws IOException {
 
-        long blockIndex = getHash(K);
+        ArrayList<WriteAheadLog.Record> records = new ArrayList<>(batch.size());
+        for (Write write : batch) records.add(write.record);
 
-        long count = NumberOfTotalBlock();
-        while (count > 0) {
+        //only the committing thread touches the log
+        wal.append(records);
+        wal.sync();
 
-            if (getKeyAtBlock(blockIndex).equals(K)) {
-                return getValueAtBlock(blockIndex);
+        tableLock.writeLock().lock();
+        try {
+            if (writeBehind) {
+                for (WriteAheadLog.Record record : records) {
+                    dirty.put(record.key, record);
+                }
+                //the flusher fell behind, catch up before taking more
+                if (dirty.size() > maxDirty) applyDirty(dirty.size());
+            } else {
+                for (WriteAheadLog.Record record : records) {
+                    apply(record);
+                }
             }
+            if (wal.size() > checkpointSize) checkpoint();
+        } finally {
+            tableLock.writeLock().unlock();
+        }
+    }
 
-            //check if current block is clean
-            if (!checkBlock(blockIndex, false)) {
-                return null;
+    /**
+     * Apply every write that is logged but not in the block files yet
+     */
+    public void flush() throws IOException {
+        boolean more = true;
+        while (more) {
+            tableLock.writeLock().lock();
+            try {
+                more = applyDirty(flushBatch);
+            } finally {
+                tableLock.writeLock().unlock();
             }
+        }
+    }
 
-            if (blockIndex == NumberOfTotalBlock() - 1) blockIndex = 0;
-            else blockIndex++;
+    // apply the oldest dirty writes, table write lock must be held, return true if some are left
+    private boolean applyDirty(int count) throws IOException {
+        Iterator<Map.Entry<String, WriteAheadLog.Record>> it = dirty.entrySet().iterator();
+        for (int i = 0; i < count && it.hasNext(); i++) {
+            apply(it.next().getValue());
+            it.remove();
+        }
+        return !dirty.isEmpty();
+    }
 
-            count--;
+    /**
+     * @return  writes that are logged but not in the block files yet
+     */
+    public int getDirtyCount() {
+        tableLock.readLock().lock();
+        try {
+            return dirty.size();
+        } finally {
+            tableLock.readLock().unlock();
         }
-        // do not have enough space
-        return null;
     }
 
-    public HashMap<String, String> getRangeKV(String[] range) throws IOException {
+    // slab files hold every logged write afterwards, table write lock must be held
+    private void checkpoint() throws IOException {
+        applyDirty(dirty.size());
+        for (SlabClass slab : slabs) slab.force();
+        wal.truncate();
+    }
 
-        String from = range[0];
-        String to = range[1];
+    // take the log away from group commit
+    private void lockCommit() {
+        commitLock.lock();
+        try {
+            while (committing) {
+                committed.awaitUninterruptibly();
+            }
+            committing = true;
+        } finally {
+            commitLock.unlock();
+        }
+    }
 
-        boolean edge = from.compareTo(to) >= 0;
+    private void unlockCommit() {
+        commitLock.lock();
+        try {
+            committing = false;
+            committed.signalAll();
+        } finally {
+            commitLock.unlock();
+        }
+    }
 
-        HashMap<String, String> map = new HashMap<String, String>();
 
-        long count = NumberOfTotalBlock() - 1;
-        while (count >= 0) {
+    public byte[] getKV(String K) throws IOException {
 
-            String key = getKeyAtBlock(count);
+        tableLock.readLock().lock();
+        try {
+            WriteAheadLog.Record record = dirty.get(K);
+            if (record != null) return record.value;
 
-            if (!key.equals("")) {
+            long entry = index.get(K);
+            if (entry < 0) return null;
 
+            return getValueAtBlock(entry);
+        } finally {
+            tableLock.readLock().unlock();
+        }
+    }
 
-                MessageDigest md;
-                String keyHashValue = null;
-                try {
-                    md = MessageDigest.getInstance("MD5");
-                    md.update(key.getBytes());
-                    byte[] digest = md.digest();
-                    keyHashValue = DatatypeConverter.printHexBinary(digest).toUpperCase();
-                } catch (NoSuchAlgorithmException e) {
-                    logger.error("Cannot transfer hash " + e.getMessage());
-                }
 
-                if (edge) {
-                    if (keyHashValue.compareTo(from) >= 0 || keyHashValue.compareTo(to) < 0) {
-                        map.put(key, getValueAtBlock(count));
-                    }
-                } else {
-                    if (keyHashValue.compareTo(from) >= 0 && keyHashValue.compareTo(to) < 0) {
-                        map.put(key, getValueAtBlock(count));
-                    }
-                }
-            }
-            count--;
-        }
+    public boolean contains(String K) {
 
+        tableLock.readLock().lock();
+        try {
+            WriteAheadLog.Record record = dirty.get(K);
+            if (record != null) return record.value != null;
 
-        return map;
+            return index.get(K) >= 0;
+        } finally {
+            tableLock.readLock().unlock();
+        }
     }
 
+    public HashMap<String, byte[]> getRangeKV(String[] range) throws IOException {
 
-    public void removeRangeKV(String[] range) throws IOException {
-
-        String from = range[0];
-        String to = range[0];
+        HashMap<String, byte[]> map = new HashMap<String, byte[]>();
 
-        boolean edge = from.compareTo(to) > 0;
+        flushForRange();
+        try {
+            for (String key : ring.keysIn(range)) {
+                map.put(key, getValueAtBlock(index.get(key)));
+            }
+        } finally {
+            tableLock.readLock().unlock();
+        }
 
+        return map;
+    }
 
-        long count = NumberOfTotalBlock() - 1;
-        while (count >= 0) {
 
-            String key = getKeyAtBlock(count);
-            if (!key.equals("")) {
+    public void removeRangeKV(String[] range) throws IOException {
 
-                MessageDigest md;
-                String keyHashValue = null;
-                try {
-                    md = MessageDigest.getInstance("MD5");
-                    md.update(key.getBytes());
-                    byte[] digest = md.digest();
-                    keyHashValue = DatatypeConverter.printHexBinary(digest).toUpperCase();
-                } catch (NoSuchAlgorithmException e) {
-                    logger.error("Cannot transfer hash " + e.getMessage());
-                }
+        ArrayList<WriteAheadLog.Record> records = new ArrayList<>();
 
-                if (edge) {
-                    if (keyHashValue.compareTo(from) >= 0 || keyHashValue.compareTo(to) < 0) {
-                        writeKeyValueAtBlock(count, key, "");
-                    }
-                } else {
-                    if (keyHashValue.compareTo(from) >= 0 && keyHashValue.compareTo(to) < 0) {
-                        writeKeyValueAtBlock(count, key, "");
-                    }
-                }
+        flushForRange();
+        try {
+            for (String key : ring.keysIn(range)) {
+                records.add(new WriteAheadLog.Record(key, null));
             }
-            count--;
+        } finally {
+            tableLock.readLock().unlock();
         }
-    }
 
+        //deletes are logged too, otherwise a replay could bring the keys back
+        if (!records.isEmpty()) commit(records);
+    }
 
-    public boolean extend() throws IOException {
+    // take the read lock with every dirty write applied, the ring only knows keys in the block files
+    private void flushForRange() throws IOException {
+        if (!writeBehind) {
+            tableLock.readLock().lock();
+            return;
+        }
 
-        return false;
+        tableLock.writeLock().lock();
+        try {
+            applyDirty(dirty.size());
+            //downgrade, no write can slip in between
+            tableLock.readLock().lock();
+        } finally {
+            tableLock.writeLock().unlock();
+        }
+    }
 
+    // table write lock must be held
+    private void removeKey(String K) throws IOException {
+        clearBlock(index.remove(K));
+        ring.remove(K);
     }
 
-    // location take the hash location overall all files
-    // type true => read first byte, false => read second byte
-    private boolean checkBlock(long blockIndex, boolean type) throws IOException {
 
-        int i = (int) (blockIndex / fileBlock);
-        File DBfile = new File(file_path + String.valueOf(i));
-        RandomAccessFile file = new RandomAccessFile(DBfile, "r");
+    public void close() throws IOException {
 
-        lockList.get(i).readLock().lock();
+        if (closed) return;
+        closed = true;
 
-        long location = (blockIndex % fileBlock) * blockSize;
-        file.seek(location + (type ? 0 : 1));
-        boolean byte_bool = file.readBoolean();
+        compactor.shutdown();
+        try {
+            compactor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        lockCommit();
+        tableLock.writeLock().lock();
+        try {
+            //a clean close leaves nothing to replay
+            checkpoint();
+            wal.close();
+            for (SlabClass slab : slabs) slab.close();
+        } finally {
+            tableLock.writeLock().unlock();
+            unlockCommit();
+        }
+    }
 
-        lockList.get(i).readLock().unlock();
+    /**
+     * Move the highest blocks of every size class down into free slots and
+     * delete the files left empty at the end. Only one compaction runs at a time.
+     */
+    public synchronized void compact() throws IOException {
 
-        file.close();
+        logger.info("Compacting " + name + ": " + describe());
+
+        for (int c = 0; c < slabs.length; c++) {
+            boolean more = true;
+            while (more && !closed) {
+                tableLock.writeLock().lock();
+                try {
+                    more = compactBatch(c);
+                } finally {
+                    tableLock.writeLock().unlock();
+                }
+            }
+        }
 
-        return byte_bool;
+        logger.info("Compacted " + name + ": " + describe());
     }
 
-    //get the key at given block
-    private String getKeyAtBlock(long blockIndex) throws IOException {
-        int i = (int) (blockIndex / fileBlock);
-        File DBfile = new File(file_path + String.valueOf(i));
-        RandomAccessFile file = new RandomAccessFile(DBfile, "r");
+    // table write lock must be held, return true if there may be more to move
+    private boolean compactBatch(int c) throws IOException {
 
-        lockList.get(i).readLock().lock();
+        SlabClass slab = slabs[c];
+        ArrayList<Long> moved = new ArrayList<>();
 
-        long location = (blockIndex % fileBlock) * blockSize;
+        while (moved.size() < compactBatch) {
+            long from = slab.getHighestUsed();
+            long to = slab.getLowestFree();
+            if (from < 0 || to > from) break;
 
-        //read the size of key
-        file.seek(location);
-        if (!file.readBoolean()) {
-            lockList.get(i).readLock().unlock();
-            file.close();
-            return "";
+            moved.add(moveBlock(c, from, to));
         }
 
-        //read the size of key
-        file.seek(location + 2);
-        int keySize = file.readInt();
+        if (moved.isEmpty()) return false;
 
-        //read the key
-        file.seek(location + 2 + 8);
-        byte[] key = new byte[keySize];
-        file.readFully(key);
+        //copies are durable before the originals and their files go away
+        slab.force();
+        for (long entry : moved) clearBlock(entry);
+        slab.shrink();
 
-        lockList.get(i).readLock().unlock();
-        file.close();
-
-        return new String(key);
+        return moved.size() == compactBatch;
     }
 
-    //get the key at given block
-    private String getValueAtBlock(long blockIndex) throws IOException {
-        int i = (int) (blockIndex / fileBlock);
-        File DBfile = new File(file_path + String.valueOf(i));
-        RandomAccessFile file = new RandomAccessFile(DBfile, "r");
+    // copy a block with the next generation, return the entry of the original
+    private long moveBlock(int c, long from, long to) throws IOException {
+
+        SlabClass slab = slabs[c];
 
-        lockList.get(i).readLock().lock();
+        ByteBuffer header = ByteBuffer.allocate(headerSize);
+        slab.read(from, header, 0);
+        String K = keyOf(header);
+        int valueSize = header.getInt(6);
 
-        long location = (blockIndex % fileBlock) * blockSize;
+        ByteBuffer block = ByteBuffer.allocate(headerSize + valueSize);
+        slab.read(from, block, 0);
+        block.put(1, (byte) (block.get(1) + 1));
+        block.clear();
+        slab.write(to, block, 0);
 
-        //read the size of key
-        file.seek(location + 6);
-        int valueSize = file.readInt();
+        slab.markUsed(to);
+        slab.free(from);
+        index.put(K, pack(c, to, valueSize));
 
-        //read the key
-        file.seek(location + 2 + 8 + 20);
-        byte[] value = new byte[valueSize];
-        file.readFully(value);
+        return pack(c, from, valueSize);
+    }
 
-        lockList.get(i).readLock().unlock();
-        file.close();
+    private boolean isFragmented() {
 
-        return new String(value);
+        tableLock.readLock().lock();
+        try {
+            for (SlabClass slab : slabs) {
+                long slots = slab.getHighestUsed() + 1;
+                long free = slots - slab.getUsedCount();
+                if (free > compactBatch && free > compactRatio * slots) return true;
+            }
+            return false;
+        } finally {
+            tableLock.readLock().unlock();
+        }
     }
 
-    // write value at given block
-    private void writeKeyValueAtBlock(long blockIndex, String K, String V) throws IOException {
+    // used and reachable slots and files of each class, probe length of the index
+    private String describe() {
+
+        tableLock.readLock().lock();
+        try {
+            StringBuilder sb = new StringBuilder();
+            for (SlabClass slab : slabs) {
+                if (slab.getFileCount() == 0) continue;
+                sb.append(slab.getSlotSize()).append("B ")
+                        .append(slab.getUsedCount()).append("/").append(slab.getHighestUsed() + 1)
+                        .append(" slots in ").append(slab.getFileCount()).append(" files, ");
+            }
+            double[] probe = index.probeLength();
+            sb.append(String.format("index probe length avg %.2f max %.0f", probe[0], probe[1]));
+            return sb.toString();
+        } finally {
+            tableLock.readLock().unlock();
+        }
+    }
 
-        int i = (int) (blockIndex / fileBlock);
-        File DBfile = new File(file_path + String.valueOf(i));
-        RandomAccessFile file = new RandomAccessFile(DBfile, "rw");
+    /**
+     * Number of files of each size class, smallest class first
+     */
+    public int[] getFileCounts() {
+
+        tableLock.readLock().lock();
+        try {
+            int[] counts = new int[slabs.length];
+            for (int c = 0; c < slabs.length; c++) counts[c] = slabs[c].getFileCount();
+            return counts;
+        } finally {
+            tableLock.readLock().unlock();
+        }
+    }
 
-        lockList.get(i).writeLock().lock();
+    // add an occupied block to the index
+    private void loadBlock(SlabClass slab, long slot, ByteBuffer header) throws IOException {
+        int c = classOf(slab);
+        int generation = header.get(1) & 0xff;
+        int valueSize = header.getInt(6);
+        String K = keyOf(header);
+
+        long entry = index.get(K);
+
+        //a crash while moving a key between classes leaves two copies, keep the newer one
+        if (entry >= 0) {
+            int other = readGeneration(entry);
+            if (((other + 1) & 0xff) == generation) {
+                clearBlock(entry);
+            } else {
+                slab.markUsed(slot);
+                clearBlock(pack(c, slot, valueSize));
+                return;
+            }
+        }
 
-        long location = (blockIndex % fileBlock) * blockSize;
+        index.put(K, pack(c, slot, valueSize));
+        slab.markUsed(slot);
+    }
 
-        //going to the block location
-        file.seek(location);
+    //get the value of an index entry
+    private byte[] getValueAtBlock(long entry) throws IOException {
+        ByteBuffer value = ByteBuffer.allocate(sizeOf(entry));
+        slabs[classOf(entry)].read(slotOf(entry), value, headerSize);
 
-        if (V == null || V.equals("")) {
-            file.writeBoolean(false);
-            lockList.get(i).writeLock().unlock();
-            file.close();
-            return;
-        }
+        return value.array();
+    }
+
+    // write header and value in a single write
+    private void writeBlock(int c, long slot, String K, byte[] value, int generation) throws IOException {
 
-        //start writing
+        ByteBuffer block = ByteBuffer.allocate(headerSize + value.length);
         //occupied
-        file.writeBoolean(true);
-        //grey
-        file.writeBoolean(true);
+        block.put((byte) 1);
+        //generation
+        block.put((byte) generation);
         //size of key
-        file.writeInt(K.length());
+        block.putInt(K.length());
         //size of value
-        file.writeInt(V.length());
+        block.putInt(value.length);
         //key
-        file.writeBytes(K);
-        file.seek(location + blockSize - 120000);
+        block.put(K.getBytes(StandardCharsets.ISO_8859_1));
         //value
-        file.writeBytes(V);
+        block.position(headerSize);
+        block.put(value);
+        block.flip();
 
-        lockList.get(i).writeLock().unlock();
-        file.close();
+        slabs[c].write(slot, block, 0);
+    }
 
+    // clear the occupied flag and return the slot to its class
+    private void clearBlock(long entry) throws IOException {
+        slabs[classOf(entry)].write(slotOf(entry), ByteBuffer.wrap(new byte[]{0}), 0);
+        slabs[classOf(entry)].free(slotOf(entry));
     }
 
-    private long NumberOfTotalBlock() {
-        return (fileNumber * fileBlock);
+    private static String keyOf(ByteBuffer header) {
+        byte[] key = new byte[header.getInt(2)];
+        header.position(10);
+        header.get(key);
+        return new String(key, StandardCharsets.ISO_8859_1);
     }
 
+    private int readGeneration(long entry) throws IOException {
+        ByteBuffer generation = ByteBuffer.allocate(1);
+        slabs[classOf(entry)].read(slotOf(entry), generation, 1);
+        return generation.get(0) & 0xff;
+    }
+
+    private static int sizeClass(int valueSize) {
+        int c = 0;
+        while (slotSizes[c] < headerSize + valueSize) c++;
+        return c;
+    }
+
+    private int classOf(SlabClass slab) {
+        int c = 0;
+        while (slabs[c] != slab) c++;
+        return c;
+    }
+
+    private static long pack(int c, long slot, int valueSize) {
+        return ((long) c << 60) | (slot << 20) | valueSize;
+    }
+
+    private static int classOf(long entry) {
+        return (int) (entry >>> 60);
+    }
+
+    private static long slotOf(long entry) {
+        return (entry >>> 20) & ((1L << 40) - 1);
+    }
 
-    private long getHash(String K) {
-        return abs(K.hashCode()) % NumberOfTotalBlock();
+    private static int sizeOf(long entry) {
+        return (int) (entry & ((1 << 20) - 1));
     }
 }
@@ -9,8 +9,16 @@ import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 
 import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.io.IOException;
 import java.net.*;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.StandardCharsets;
 
 
 public class KVServer implements IKVServer {
@@ -29,8 +37,26 @@ public class KVServer implements IKVServer {
      */
     private String name, zkHostname;
     private int port, zkPort, cacheSize;
+
+    /**
+     * bound on bytes of cached keys and values, 0 for none
+     */
+    private long cacheBytes;
     private ServerSocket serverSocket;
     private CacheStrategy cacheStrategy;
+    private StorageStrategy storageStrategy;
+    private ConnectionMode connectionMode;
+
+    /**
+     * selector based server of the NIO mode
+     */
+    private NioServer nio;
+
+    /**
+     * answers pipelined requests of THREAD connections, shared by all of them
+     */
+    private ExecutorService requestWorkers;
+    private static final int requestThreads = Math.max(8, Runtime.getRuntime().availableProcessors() * 2);
 
     /**
      * Server State
@@ -45,7 +71,7 @@ public class KVServer implements IKVServer {
     /**
      * List of Client Connections
      */
-    private ArrayList<ClientConnection> connections;
+    private List<ClientConnection> connections;
 
     /**
      * cache
@@ -53,14 +79,36 @@ public class KVServer implements IKVServer {
     private KVCache cache;
 
     /**
-     * cache for global service
+     * hits, misses and loads of the cache
      */
-    private KVCache gCache;
+    private CacheStats stats = new CacheStats();
+
+    /**
+     * results of the global service, kept in the cache above
+     */
+    private RemoteCache remote;
+
+    /**
+     * milliseconds other servers may keep our values without hearing of a write
+     */
+    private static final long remoteTTL = 5000;
+
+    /**
+     * servers holding our values in their remote cache
+     */
+    private ReaderLeases leases = new ReaderLeases(remoteTTL);
+
+    /**
+     * hottest cached keys, saved every snapshotInterval seconds and on close
+     */
+    private HotKeySnapshot snapshot;
+    private ScheduledExecutorService snapshotter;
+    private static final int snapshotInterval = 60;
 
     /**
      * file system database
      */
-    private KVDB db;
+    private IKVDB db;
 
     /**
      * zookeeper
@@ -98,19 +146,58 @@ public class KVServer implements IKVServer {
     }
 
     public void initKVServer(int port, int cacheSize, String Strategy) {
+        initKVServer(port, cacheSize, Strategy, StorageStrategy.BLOCK.name());
+    }
+
+    public void initKVServer(int port, int cacheSize, String Strategy, String storage) {
+        initKVServer(port, cacheSize, Strategy, storage, 0);
+    }
+
+    /**
+     * @param cacheBytes  bound on bytes of cached keys and values, 0 for none.
+     *                    With a byte bound, a cacheSize of 0 bounds the caches by bytes only.
+     */
+    public void initKVServer(int port, int cacheSize, String Strategy, String storage, long cacheBytes) {
+        initKVServer(port, cacheSize, Strategy, storage, cacheBytes, ConnectionMode.THREAD.name());
+    }
+
+    /**
+     * @param connection  THREAD for a thread per client, NIO for selector threads and a worker pool,
+     *                    VIRTUAL for a virtual thread per client where the JVM has them
+     */
+    public void initKVServer(int port, int cacheSize, String Strategy, String storage, long cacheBytes, String connection) {
         logger.info("Initialize server ...");
 
 
         //initialize some local variable
         state = KVServerState.STOPPED;
-        connections = new ArrayList<>();
+        connections = new CopyOnWriteArrayList<>();
         cacheStrategy = CacheStrategy.valueOf(Strategy);
+        storageStrategy = StorageStrategy.valueOf(storage);
+        connectionMode = ConnectionMode.valueOf(connection);
+        if (connectionMode == ConnectionMode.VIRTUAL && !VirtualThreads.isAvailable())
+            logger.warn("No virtual threads before Java 21, clients get platform threads");
         this.port = port;
         this.cacheSize = cacheSize;
+        this.cacheBytes = cacheBytes;
 
         //initialize KVServer
         try {
-            serverSocket = new ServerSocket(port);
+            //accepted sockets then have channels, CommunicationModule writes through them
+            ServerSocketChannel channel = ServerSocketChannel.open();
+            channel.socket().bind(new InetSocketAddress(port));
+            serverSocket = channel.socket();
+            if (connectionMode == ConnectionMode.NIO) nio = new NioServer(this, channel);
+            if (connectionMode == ConnectionMode.THREAD) {
+                requestWorkers = Executors.newFixedThreadPool(requestThreads, new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "request-" + KVServer.this.name);
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+            }
             logger.info("Server listening on port: " + serverSocket.getLocalPort());
             port = serverSocket.getLocalPort();
 
@@ -123,18 +210,15 @@ public class KVServer implements IKVServer {
         }
 
         //Initialize cache
+        //connections share the caches, so every strategy is striped
         switch (cacheStrategy) {
             case LRU:
-                cache = new LRUCache(cacheSize);
-                gCache = new LRUCache(cacheSize);
-                break;
             case FIFO:
-                cache = new FIFOCache(cacheSize);
-                gCache = new FIFOCache(cacheSize);
-                break;
             case LFU:
-                cache = new LFUCache(cacheSize);
-                gCache = new LFUCache(cacheSize);
+            case TINYLFU:
+            case OFFHEAP:
+                cache = new StripedCache(cacheStrategy, cacheSize, cacheBytes);
+                remote = new RemoteCache(cache, (cacheSize > 0) ? cacheSize : 1000, remoteTTL);
                 break;
             case None:
                 break;
@@ -145,19 +229,106 @@ public class KVServer implements IKVServer {
 
         //Initialize file system database
         try {
-            logger.debug("Creating DB " + name);
-            db = new KVDB(name);
+            logger.debug("Creating " + storageStrategy + " DB " + name);
+            switch (storageStrategy) {
+                case MMAP:
+                    db = new KVDB(name, true);
+                    break;
+                case LOG:
+                    db = new LogKVDB(name);
+                    break;
+                case WRITEBEHIND:
+                    db = new KVDB(name, false, true);
+                    break;
+                default:
+                    db = new KVDB(name);
+                    break;
+            }
 
         } catch (IOException e) {
             logger.error("Cannot create new DB " + e);
             return;
         }
 
+        if (cacheStrategy != CacheStrategy.None) {
+            snapshot = new HotKeySnapshot(name);
+            warmUp();
+
+            snapshotter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "snapshot-" + KVServer.this.name);
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            snapshotter.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    saveHotKeys();
+                }
+            }, snapshotInterval, snapshotInterval, TimeUnit.SECONDS);
+        }
+
         logger.info("Done");
 
         running = true;
     }
 
+    /**
+     * @return  up to count of the hottest cached keys of this server, hottest first
+     */
+    public List<String> hotKeys(int count) {
+        ArrayList<String> keys = new ArrayList<>();
+        if (cacheStrategy == CacheStrategy.None) return keys;
+
+        for (String key : cache.hotKeys(count)) {
+            if (!RemoteCache.isRemote(key)) keys.add(key);
+        }
+        return keys;
+    }
+
+    private void saveHotKeys() {
+        try {
+            List<String> keys = hotKeys((cacheSize > 0) ? cacheSize : Integer.MAX_VALUE);
+            snapshot.save(keys);
+            logger.debug("Saved " + keys.size() + " hot keys of " + name);
+        } catch (Exception e) {
+            logger.error("Cannot save hot keys " + e);
+        }
+    }
+
+    // load the values of the last snapshot, so the first requests after a restart hit the cache
+    private void warmUp() {
+        try {
+            List<String> keys = snapshot.load();
+            int loaded = 0;
+
+            // coldest first, the hottest keys end up the most recent
+            for (int i = keys.size() - 1; i >= 0; i--) {
+                String key = keys.get(i);
+                if (!db.contains(key)) continue;
+
+                byte[] value = db.getKV(key);
+                if (value != null) {
+                    cache.putKV(key, value);
+                    loaded++;
+                }
+            }
+            logger.info("Warmed cache with " + loaded + " hot keys");
+        } catch (IOException e) {
+            logger.error("Cannot warm cache " + e);
+        }
+    }
+
+    /**
+     * Cache a value stored from another server, the previous owner found it hot
+     */
+    public void warm(String key, byte[] value) {
+        if (cacheStrategy != CacheStrategy.None && value != null)
+            cache.putKV(key, value);
+    }
+
     public MetaData getMetaData() {
         return meta;
     }
@@ -171,16 +342,19 @@ public class KVServer implements IKVServer {
     }
 
 
-    public void DBput(String key, String value) {
+    public void DBput(String key, byte[] value) {
         try {
             logger.debug("put to DB " + key);
             db.putKV(key, value);
+            //a copy from another server replaces whatever was cached
+            if (cacheStrategy != CacheStrategy.None)
+                cache.putKV(key, null);
         } catch (IOException e) {
             logger.error("Cannot write to file " + e);
         }
     }
 
-    public String DBget(String key) {
+    public byte[] DBget(String key) {
         try {
             logger.debug("get from DB " + key);
             return db.getKV(key);
@@ -216,21 +390,26 @@ public class KVServer implements IKVServer {
         return cacheSize;
     }
 
+    @Override
+    public long getCacheBytes() {
+        return cacheBytes;
+    }
+
+    @Override
+    public StorageStrategy getStorageStrategy() {
+        return storageStrategy;
+    }
+
     @Override
     public boolean inStorage(String key) {
-        try {
-            String result = db.getKV(key);
-            boolean in = (result != null);
+        // answered from the storage index, no disk access
+        boolean in = db.contains(key);
 
-            if (in) logger.info("KEY: " + key + " is in STORAGE.");
+        if (in) logger.info("KEY: " + key + " is in STORAGE.");
 
-            else logger.info("KEY: " + key + " is not in STORAGE.");
+        else logger.info("KEY: " + key + " is not in STORAGE.");
 
-            return in;
-        } catch (IOException e) {
-            logger.error("Cannot execute IO operations" + e);
-            return false;
-        }
+        return in;
     }
 
     @Override
@@ -249,23 +428,39 @@ public class KVServer implements IKVServer {
 
     @Override
     public String getKV(String key) throws Exception {
+        byte[] value = getKVBytes(key);
+        return (value == null) ? null : new String(value, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void putKV(String key, String value) throws Exception {
+        putKVBytes(key, (value == null) ? null : value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public byte[] getKVBytes(String key) throws Exception {
         if (getCacheStrategy() != CacheStrategy.None) {
 
-            String cacheValue = cache.getKV(key);
+            byte[] cacheValue = cache.getKV(key);
             if (cacheValue != null) {
-                logger.info("KV Operation (GET) in CACHE, KEY => " + key + ", VALUE => " + cacheValue);
+                stats.hit();
+                logger.info("KV Operation (GET) in CACHE, KEY => " + key + ", VALUE => " + cacheValue.length + " bytes");
                 return cacheValue;
             }
+            stats.miss();
             logger.info("KV Operation (GET) in CACHE, KEY => " + key + ", NOT FOUND ");
         }
 
-        String value = db.getKV(key);
+        long start = System.nanoTime();
+        byte[] value = db.getKV(key);
 
         if (value != null) {
 
-            logger.info("KV Operation (GET) in STORAGE: KEY => " + key + ", VALUE => " + value);
-            if (getCacheStrategy() != CacheStrategy.None)
+            logger.info("KV Operation (GET) in STORAGE: KEY => " + key + ", VALUE => " + value.length + " bytes");
+            if (getCacheStrategy() != CacheStrategy.None) {
+                stats.load(System.nanoTime() - start);
                 cache.putKV(key, value);
+            }
             return value;
         }
 
@@ -275,19 +470,28 @@ public class KVServer implements IKVServer {
     }
 
     @Override
-    public void putKV(String key, String value) throws Exception {
+    public void putKVBytes(String key, byte[] value) throws Exception {
+
+        int size = (value == null) ? 0 : value.length;
 
         if (getCacheStrategy() != CacheStrategy.None) {
-            logger.info("KV Operation (PUT) in CACHE: KEY => " + key + ", VALUE => " + value);
+            logger.info("KV Operation (PUT) in CACHE: KEY => " + key + ", VALUE => " + size + " bytes");
             cache.putKV(key, value);
         }
 
         db.putKV(key, value);
-        logger.info("KV Operation (PUT) in STORAGE: KEY => " + key + ", VALUE => " + value);
+        logger.info("KV Operation (PUT) in STORAGE: KEY => " + key + ", VALUE => " + size + " bytes");
+
+        ArrayList<String> readers = leases.take(key);
+        if (!readers.isEmpty() && zkWatch != null) {
+            logger.info("Invalidating KEY => " + key + " on " + readers);
+
+            new Thread(new CacheInvalidator(zkWatch, key, readers)).start();
+        }
 
         if (replicas != null && zkWatch != null) {
 
-            HashMap<String, String> map = new HashMap<>();
+            HashMap<String, byte[]> map = new HashMap<>();
             map.put(key, value);
             logger.info("Moving to replicas");
 
@@ -297,6 +501,22 @@ public class KVServer implements IKVServer {
         }
     }
 
+    /**
+     * @return  counters of the cache since the server started
+     */
+    public CacheStats.Report getCacheStats() {
+        return stats.report(cacheStrategy.name(), cacheSize, cacheBytes,
+                (cacheStrategy == CacheStrategy.None) ? null : cache);
+    }
+
+    /**
+     * Drop the remote result of a key after its owner changed it
+     */
+    public void invalidateRemote(String key) {
+        if (cacheStrategy != CacheStrategy.None)
+            remote.invalidate(key);
+    }
+
     public ArrayList<String> getReplicas() {
         return replicas;
     }
@@ -305,13 +525,20 @@ public class KVServer implements IKVServer {
         String target = meta.getServerByKey(message.getKey()).getNodeName();
 
         if (message.getStatus() == KVMessage.StatusType.GET && cacheStrategy != CacheStrategy.None) {
-            if (gCache.getKV(message.getKey()) != null) {
-                return new Message(KVMessage.StatusType.GET_SUCCESS, message.getKey(), gCache.getKV(message.getKey()));
+            byte[] cached = remote.getKV(message.getKey());
+            if (cached != null) {
+                return new Message(KVMessage.StatusType.GET_SUCCESS, message.getKey(), cached);
+
+            } else if (remote.isMissing(message.getKey())) {
+                logger.info("KEY: " + message.getKey() + " recently missing on " + target);
+                return new Message(KVMessage.StatusType.GET_ERROR, message.getKey(), "");
 
             } else {
                 KVMessage response = zkWatch.gService(message, target);
-                if (response.getStatus() == KVMessage.StatusType.GET_SUCCESS && cacheStrategy != CacheStrategy.None)
-                    gCache.putKV(response.getKey(), response.getValue());
+                if (response != null && response.getStatus() == KVMessage.StatusType.GET_SUCCESS)
+                    remote.putKV(message.getKey(), response.getValueBytes());
+                else if (response != null && response.getStatus() == KVMessage.StatusType.GET_ERROR)
+                    remote.putKV(message.getKey(), null);
                 return response;
             }
         }
@@ -319,9 +546,15 @@ public class KVServer implements IKVServer {
         if (message.getStatus() == KVMessage.StatusType.PUT){
 
             KVMessage response = zkWatch.gService(message, target);
-            if(cacheStrategy != CacheStrategy.None && (response.getStatus() == KVMessage.StatusType.PUT_SUCCESS || response.getStatus() == KVMessage.StatusType.DELETE_SUCCESS ||
-                    response.getStatus() == KVMessage.StatusType.DELETE_SUCCESS))
-                gCache.putKV(response.getKey(), response.getValue());
+            if (cacheStrategy != CacheStrategy.None) {
+                KVMessage.StatusType status = (response == null) ? null : response.getStatus();
+                if (status == KVMessage.StatusType.PUT_SUCCESS || status == KVMessage.StatusType.PUT_UPDATE)
+                    remote.putKV(message.getKey(), message.getValueBytes());
+                else if (status == KVMessage.StatusType.DELETE_SUCCESS)
+                    remote.putKV(message.getKey(), null);
+                else
+                    remote.invalidate(message.getKey());
+            }
 
             return response;
         }
@@ -332,13 +565,25 @@ public class KVServer implements IKVServer {
     }
 
     public KVMessage responseGlobalService(KVMessage message) {
+        return responseGlobalService(message, null);
+    }
+
+    /**
+     * Answer a request forwarded by another server
+     * @param requester  server that may cache the result, it is told when the key changes
+     */
+    public KVMessage responseGlobalService(KVMessage message, String requester) {
+
+        //lease first, so a write racing the response still invalidates
+        if (requester != null && message.getKey() != null)
+            leases.add(message.getKey(), requester);
 
         try {
             ClientConnection t = new ClientConnection(null, this);
             if (message.getStatus() == KVMessage.StatusType.GET)
                 return t.get(message.getKey(), message);
             if (message.getStatus() == KVMessage.StatusType.PUT)
-                return t.put(message.getKey(), message.getValue(), message);
+                return t.put(message.getKey(), message.getValueBytes(), message);
 
         } catch (Exception e) {
             logger.error("Error handle Global service");
@@ -352,8 +597,10 @@ public class KVServer implements IKVServer {
     @Override
     public void clearCache() {
         logger.info("CACHE cleaning");
-        if (cacheStrategy != CacheStrategy.None)
+        if (cacheStrategy != CacheStrategy.None) {
             cache.clear();
+            remote.clear();
+        }
         logger.info("CACHE cleaned");
     }
 
@@ -372,6 +619,11 @@ public class KVServer implements IKVServer {
     @Override
     public void run() {
 
+        if (nio != null) {
+            nio.run();
+            return;
+        }
+
         if (serverSocket != null) {
 
             while (running) {
@@ -379,9 +631,12 @@ public class KVServer implements IKVServer {
                     Socket client = serverSocket.accept();
 
                     ClientConnection connection = new ClientConnection(client, this);
-                    new Thread(connection).start();
-
+                    //listed first, the connection removes itself when it ends
                     connections.add(connection);
+                    if (connectionMode == ConnectionMode.VIRTUAL)
+                        VirtualThreads.start(connection, "client-" + client.getPort());
+                    else
+                        new Thread(connection).start();
 
                     logger.info("Connected to "
                             + client.getInetAddress().getHostName()
@@ -400,6 +655,31 @@ public class KVServer implements IKVServer {
         }
     }
 
+    /**
+     * Forget a client connection that ended
+     */
+    void removeConnection(ClientConnection connection) {
+        connections.remove(connection);
+    }
+
+    /**
+     * Answer a pipelined request apart from the thread reading its connection
+     */
+    void execute(Runnable task) {
+        if (connectionMode == ConnectionMode.VIRTUAL)
+            VirtualThreads.start(task, "request-" + name);
+        else
+            requestWorkers.execute(task);
+    }
+
+    public int getConnectionCount() {
+        return (nio != null) ? nio.getConnectionCount() : connections.size();
+    }
+
+    public ConnectionMode getConnectionMode() {
+        return connectionMode;
+    }
+
     @Override
     public void kill() {
         running = false;
@@ -408,7 +688,20 @@ public class KVServer implements IKVServer {
             for (ClientConnection client : connections) {
                 client.stop();
             }
+            if (nio != null) {
+                nio.close();
+            }
+            if (requestWorkers != null) {
+                requestWorkers.shutdownNow();
+            }
             serverSocket.close();
+            if (snapshotter != null) {
+                snapshotter.shutdown();
+                saveHotKeys();
+            }
+            if (db != null) {
+                db.close();
+            }
             if (zkWatch != null) {
                 zkWatch.releaseConnection();
             }
@@ -426,7 +719,20 @@ public class KVServer implements IKVServer {
             for (ClientConnection client : connections) {
                 client.stop();
             }
+            if (nio != null) {
+                nio.close();
+            }
+            if (requestWorkers != null) {
+                requestWorkers.shutdownNow();
+            }
             serverSocket.close();
+            if (snapshotter != null) {
+                snapshotter.shutdown();
+                saveHotKeys();
+            }
+            if (db != null) {
+                db.close();
+            }
             if (zkWatch != null) {
                 zkWatch.releaseConnection();
             }
@@ -469,13 +775,18 @@ public class KVServer implements IKVServer {
     @Override
     public boolean moveData(String[] hashRange, String targetName) throws Exception {
         try {
-            HashMap<String, String> map = db.getRangeKV(hashRange);
+            HashMap<String, byte[]> map = db.getRangeKV(hashRange);
 
-            zkWatch.moveData(map, targetName);
+            // the new owner caches the keys that are hot here
+            HashSet<String> hot = new HashSet<>();
+            for (String key : hotKeys((cacheSize > 0) ? cacheSize : Integer.MAX_VALUE)) {
+                if (map.containsKey(key)) hot.add(key);
+            }
 
-            logger.debug("Removing data");
+            zkWatch.moveData(map, targetName, hot);
 
-            db.removeRangeKV(hashRange);
+            // the range is kept, this server stays a replica of a new predecessor
+            // and reRangeNewReplicas copies its own range
         } catch (Exception e) {
             logger.info("cannot get ranged kV");
         }
@@ -485,14 +796,17 @@ public class KVServer implements IKVServer {
 
     public static void main(String[] args) {
         try {
-            if (args.length != 6) {
+            if (args.length < 6 || args.length > 9) {
                 System.out.println("Invalid argument! Usage: Server <name> <zkHostname> <zkPort>!");
             } else {
                 new logger.LogSetup("logs/server/" + args[0] + ".log", Level.INFO);
 
                 KVServer server = new KVServer(args[0], args[1], Integer.parseInt(args[2]));
 
-                server.initKVServer(Integer.parseInt(args[3]), Integer.parseInt(args[5]), args[4]);
+                server.initKVServer(Integer.parseInt(args[3]), Integer.parseInt(args[5]), args[4],
+                        args.length >= 7 ? args[6] : StorageStrategy.BLOCK.name(),
+                        args.length >= 8 ? CacheLimits.parseBytes(args[7]) : 0,
+                        args.length == 9 ? args[8] : ConnectionMode.THREAD.name());
 
                 server.initZK();
 
@@ -14,6 +14,7 @@ import org.apache.zookeeper.ZooDefs.Ids;
 import org.apache.zookeeper.ZooKeeper;
 import org.apache.zookeeper.data.Stat;
 
+
 import java.lang.reflect.Type;
 import java.util.*;
 import java.util.concurrent.CountDownLatch;
@@ -102,6 +103,13 @@ public class KVServerWatcher {
      */
     CountDownLatch dataSemaphore = null;
 
+    /**
+     * invalidations go to their own node so they never overwrite a transfer,
+     * and one at a time so two of them never overwrite each other
+     */
+    private static final String INVALIDATE_SUFFIX = "-inv";
+    private final Object invalidateLock = new Object();
+
     //constructor
     KVServerWatcher(Logger logger, KVServer kvserver, String zkAddress, String name) {
         this.logger = logger;
@@ -309,7 +317,10 @@ public class KVServerWatcher {
 
                                 KVMessage message = gson.fromJson(data.substring(3), Message.class);
 
-                                KVMessage response = kvServer.responseGlobalService(message);
+                                //the node is named after the requesting server
+                                String requester = path.substring(path.lastIndexOf('/') + 1);
+
+                                KVMessage response = kvServer.responseGlobalService(message, requester);
 
                                 logger.info("Response is " + gson.toJson(response));
 
@@ -320,9 +331,27 @@ public class KVServerWatcher {
                                 return;
                             }
 
+                            if(data.substring(0,3).equals("I#I")){
+
+                                //owner wrote a key this server cached
+                                kvServer.invalidateRemote(data.substring(3));
+                                logger.info("Invalidated remote KEY => " + data.substring(3));
+
+                                writeData(path, "");
+                                exists(path, this);
+
+                                return;
+                            }
+
                             String[] pair = JsonToPair(data);
 
-                            kvServer.DBput(pair[0], pair[1]);
+                            //values travel base64 encoded, null deletes
+                            byte[] value = pair[1] == null ? null : Base64.getDecoder().decode(pair[1]);
+                            kvServer.DBput(pair[0], value);
+
+                            //a third element marks keys that were hot on the sender
+                            if (pair.length > 2 && "H".equals(pair[2]))
+                                kvServer.warm(pair[0], value);
                             logger.info("Get new KV key => " + pair[0]);
 
 
@@ -392,8 +421,10 @@ public class KVServerWatcher {
 
             exists(nodePath, childrenWatcher);
 
-            for(int i = 0; i< 10; i++)
+            for(int i = 0; i< 10; i++) {
                 exists(nodePath + "/server" + i, dataWatcher);
+                exists(nodePath + "/server" + i + INVALIDATE_SUFFIX, dataWatcher);
+            }
 
         } catch (Exception e) {
             logger.error("Failed to process KVServer Watcher " + e);
@@ -478,7 +509,14 @@ public class KVServerWatcher {
     }
 
 
-    void moveData(Map<String, String> map, String targetName) {
+    void moveData(Map<String, byte[]> map, String targetName) {
+        moveData(map, targetName, Collections.<String>emptySet());
+    }
+
+    /**
+     * @param hot  keys the target should cache as well as store
+     */
+    void moveData(Map<String, byte[]> map, String targetName, Set<String> hot) {
         logger.info("Start transfering data to " + targetName + " with size " + map.size());
 
         String dest = ROOT_PATH + "/" + targetName + "/" + kvServer.getName();
@@ -496,13 +534,17 @@ public class KVServerWatcher {
         }
 
         while (it.hasNext()) {
-            Map.Entry<String, String> kv = (Map.Entry<String, String>) it.next();
+            Map.Entry<String, byte[]> kv = (Map.Entry<String, byte[]>) it.next();
 
             logger.info("Sending key => " + kv.getKey() + " to " + targetName);
 
             dataSemaphore = new CountDownLatch(1);
 
-            writeData(dest,  pairToJson(new String[]{kv.getKey(), kv.getValue()}));
+            String value = (kv.getValue() == null) ? null : Base64.getEncoder().encodeToString(kv.getValue());
+            String[] pair = hot.contains(kv.getKey())
+                    ? new String[]{kv.getKey(), value, "H"}
+                    : new String[]{kv.getKey(), value};
+            writeData(dest,  pairToJson(pair));
 
             exists(dest, transferWatcher);
 
@@ -527,6 +569,39 @@ public class KVServerWatcher {
         logger.info("Done!");
     }
 
+    /**
+     * Tell a server that cached the key that its value changed
+     */
+    void invalidate(String key, String targetName) {
+        String dest = ROOT_PATH + "/" + targetName + "/" + kvServer.getName() + INVALIDATE_SUFFIX;
+
+        synchronized (invalidateLock) {
+            logger.info("Invalidating key => " + key + " on " + targetName);
+
+            createPath(dest, "");
+
+            //the target clears the node once the key is dropped
+            final CountDownLatch done = new CountDownLatch(1);
+            Watcher cleared = new Watcher() {
+                @Override
+                public void process(WatchedEvent event) {
+                    if (event != null && event.getType() == EventType.NodeDataChanged)
+                        done.countDown();
+                }
+            };
+
+            writeData(dest, "I#I" + key);
+            exists(dest, cleared);
+
+            try{
+                if(!done.await(1000, TimeUnit.MILLISECONDS))
+                    logger.warn("Invalidation time out! ");
+            }catch(Exception e){
+                logger.error("Cannot watch invalidation sema");
+            }
+        }
+    }
+
     KVMessage gService(KVMessage message, String target){
         String dest = ROOT_PATH + "/" + target + "/" + kvServer.getName();
 
@@ -0,0 +1,530 @@
+package app_kvServer;
+
+
+import app_kvServer.Storage.RangeIndex;
+import org.apache.log4j.Logger;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+
+/**
+ * Log-structured storage: every put is appended to the active segment file,
+ * an in-memory index points each key at its latest record, and old segments
+ * that are mostly overwritten are rewritten by a background compactor.
+ */
+public class LogKVDB implements IKVDB {
+
+    private Logger logger = Logger.getRootLogger();
+
+    private static final Charset charset = StandardCharsets.UTF_8;
+
+    // default size of a segment before rolling over to a new one
+    public static final long DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    // a closed segment is compacted once this fraction of it is dead
+    private static final double compactRatio = 0.5;
+
+    /**
+     * one record contains:
+     * 4 bytes for checksum of the rest of the record;
+     * 4 bytes for key size, 4 bytes for value size (-1 for a delete);
+     * key bytes, value bytes;
+     */
+    private static final int headerSize = 4 + 4 + 4;
+
+    private static final int maxKeySize = 1024;
+
+    private final long segmentSize;
+
+    private String name;
+
+    private String dir_path;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // key => latest record
+    private HashMap<String, Location> index;
+
+    // keys in hash ring order, for range handoff
+    private RangeIndex ring;
+
+    // segment id => open segment file
+    private TreeMap<Integer, FileChannel> segments;
+
+    // segment id => bytes of records still referenced by the index
+    private HashMap<Integer, Long> liveBytes;
+
+    private int activeId;
+
+    private long activeSize;
+
+    private ExecutorService compactor;
+
+    private volatile boolean closed;
+
+
+    private static class Location {
+        final int segment;
+        final long offset;
+        final int keySize;
+        final int valueSize;
+
+        Location(int segment, long offset, int keySize, int valueSize) {
+            this.segment = segment;
+            this.offset = offset;
+            this.keySize = keySize;
+            this.valueSize = valueSize;
+        }
+
+        int recordSize() {
+            return headerSize + keySize + valueSize;
+        }
+    }
+
+    private static class Record {
+        String key;
+        byte[] value;
+        int size;
+    }
+
+
+    public LogKVDB(String name) throws IOException {
+        this(name, DEFAULT_SEGMENT_SIZE);
+    }
+
+    public LogKVDB(String name, long segmentSize) throws IOException {
+
+        this.name = name;
+        this.segmentSize = segmentSize;
+        dir_path = "KVLOG/" + this.name + "/";
+
+        compactor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "compactor-" + LogKVDB.this.name);
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+        initializeDB();
+    }
+
+
+    private void initializeDB() throws IOException {
+
+        index = new HashMap<>();
+        segments = new TreeMap<>();
+        liveBytes = new HashMap<>();
+
+        File root = new File("KVLOG");
+        if (!root.exists()) root.mkdir();
+
+        File DB = new File(dir_path);
+        if (!DB.exists()) DB.mkdir();
+
+        ArrayList<Integer> ids = new ArrayList<>();
+        for (String file : DB.list()) {
+            if (file.startsWith("seg")) ids.add(Integer.parseInt(file.substring(3)));
+        }
+        Collections.sort(ids);
+
+        //replay segments from oldest to newest to rebuild the index
+        for (int i = 0; i < ids.size(); i++) {
+            int id = ids.get(i);
+            FileChannel channel = new RandomAccessFile(segmentFile(id), "rw").getChannel();
+            segments.put(id, channel);
+            liveBytes.put(id, 0L);
+
+            long end = replay(id, channel);
+
+            if (end < channel.size()) {
+                if (i == ids.size() - 1) {
+                    logger.warn("Truncating torn tail of segment " + id + " at " + end);
+                    channel.truncate(end);
+                } else {
+                    logger.error("Segment " + id + " is corrupted at " + end);
+                }
+            }
+        }
+
+        if (segments.isEmpty()) {
+            activeId = 0;
+            segments.put(activeId, new RandomAccessFile(segmentFile(activeId), "rw").getChannel());
+            liveBytes.put(activeId, 0L);
+        } else {
+            activeId = segments.lastKey();
+        }
+
+        activeSize = segments.get(activeId).size();
+        closed = false;
+
+        ring = new RangeIndex();
+        ring.addAll(index.keySet());
+
+        logger.info("Loaded " + index.size() + " keys from " + segments.size() + " segments");
+    }
+
+    // rebuild index from one segment, return the offset after the last valid record
+    private long replay(int id, FileChannel channel) throws IOException {
+
+        long position = 0;
+        long size = channel.size();
+
+        while (position < size) {
+            Record record = readRecord(channel, position, size);
+            if (record == null) break;
+
+            if (record.value == null) {
+                record(record.key, null);
+            } else {
+                record(record.key, new Location(id, position,
+                        record.size - headerSize - record.value.length, record.value.length));
+            }
+            position += record.size;
+        }
+        return position;
+    }
+
+
+    public void clear() throws IOException {
+
+        logger.info("Delete directory... ");
+
+        lock.writeLock().lock();
+        try {
+            for (FileChannel channel : segments.values()) channel.close();
+
+            File DB = new File(dir_path);
+            for (File file : DB.listFiles()) file.delete();
+            DB.delete();
+
+            logger.info("Done Delete directory... ");
+            initializeDB();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+
+    public void close() throws IOException {
+
+        closed = true;
+        compactor.shutdown();
+        try {
+            compactor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        lock.writeLock().lock();
+        try {
+            for (FileChannel channel : segments.values()) channel.close();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+
+    public void putKV(String K, byte[] V) throws IOException {
+
+        lock.writeLock().lock();
+        try {
+            if (V == null || V.length == 0) {
+                if (index.containsKey(K)) append(K, null);
+                return;
+            }
+            append(K, V);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+
+    public byte[] getKV(String K) throws IOException {
+
+        lock.readLock().lock();
+        try {
+            Location location = index.get(K);
+            if (location == null) return null;
+
+            return readValue(location);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+
+    public boolean contains(String K) {
+
+        lock.readLock().lock();
+        try {
+            return index.containsKey(K);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+
+    public HashMap<String, byte[]> getRangeKV(String[] range) throws IOException {
+
+        HashMap<String, byte[]> map = new HashMap<String, byte[]>();
+
+        lock.readLock().lock();
+        try {
+            for (String key : ring.keysIn(range)) {
+                map.put(key, readValue(index.get(key)));
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        return map;
+    }
+
+
+    public void removeRangeKV(String[] range) throws IOException {
+
+        lock.writeLock().lock();
+        try {
+            for (String key : ring.keysIn(range)) {
+                append(key, null);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+
+    /**
+     * Compact every closed segment that is dead enough, blocks until done.
+     * Only one compaction runs at a time.
+     */
+    public synchronized void compact() throws IOException {
+
+        ArrayList<Integer> candidates = new ArrayList<>();
+
+        lock.readLock().lock();
+        try {
+            for (int id : segments.keySet()) {
+                if (id == activeId) continue;
+
+                long size = segments.get(id).size();
+                if (size == 0 || 1 - (double) liveBytes.get(id) / size >= compactRatio)
+                    candidates.add(id);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        for (int id : candidates) {
+            if (closed) return;
+            compactSegment(id);
+        }
+    }
+
+    // copy the live records of a segment to the active segment, then drop it
+    private void compactSegment(int id) throws IOException {
+
+        FileChannel channel;
+        int firstTarget;
+        lock.readLock().lock();
+        try {
+            channel = segments.get(id);
+            if (channel == null) return;
+            firstTarget = activeId;
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        logger.info("Compacting segment " + id + " of " + name);
+
+        long size = channel.size();
+        long position = 0;
+
+        while (position < size) {
+            Record record = readRecord(channel, position, size);
+            if (record == null) break;
+
+            lock.writeLock().lock();
+            try {
+                if (segments.get(id) != channel) return;
+
+                Location location = index.get(record.key);
+                if (record.value != null) {
+                    if (location != null && location.segment == id && location.offset == position)
+                        append(record.key, record.value);
+                } else if (location == null && segments.firstKey() != id) {
+                    // older segments may still hold a value this delete hides
+                    append(record.key, null);
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+
+            position += record.size;
+        }
+
+        lock.writeLock().lock();
+        try {
+            if (segments.get(id) != channel) return;
+
+            // the copies may span several rolled segments, they must be durable before the original goes
+            for (FileChannel target : segments.tailMap(firstTarget).values()) target.force(true);
+
+            segments.remove(id);
+            liveBytes.remove(id);
+            channel.close();
+            segmentFile(id).delete();
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        logger.info("Done compacting segment " + id + " of " + name);
+    }
+
+
+    // write lock must be held
+    private void append(String K, byte[] value) throws IOException {
+
+        byte[] key = K.getBytes(charset);
+        int valueSize = (value == null) ? -1 : value.length;
+        int recordSize = headerSize + key.length + (value == null ? 0 : value.length);
+
+        if (activeSize > 0 && activeSize + recordSize > segmentSize) roll();
+
+        ByteBuffer buffer = ByteBuffer.allocate(recordSize);
+        buffer.putInt(0);
+        buffer.putInt(key.length);
+        buffer.putInt(valueSize);
+        buffer.put(key);
+        if (value != null) buffer.put(value);
+
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 4, recordSize - 4);
+        buffer.putInt(0, (int) crc.getValue());
+        buffer.flip();
+
+        long offset = activeSize;
+        FileChannel active = segments.get(activeId);
+        while (buffer.hasRemaining()) {
+            active.write(buffer, offset + buffer.position());
+        }
+        activeSize += recordSize;
+
+        if (value == null) ring.remove(K);
+        else if (!index.containsKey(K)) ring.add(K);
+
+        record(K, value == null ? null : new Location(activeId, offset, key.length, value.length));
+    }
+
+    // point the key at a new record, null for a delete
+    private void record(String K, Location location) {
+
+        Location old = (location == null) ? index.remove(K) : index.put(K, location);
+
+        if (old != null && liveBytes.containsKey(old.segment))
+            liveBytes.put(old.segment, liveBytes.get(old.segment) - old.recordSize());
+
+        if (location != null)
+            liveBytes.put(location.segment, liveBytes.get(location.segment) + location.recordSize());
+    }
+
+    // start a new active segment and look for segments worth compacting
+    private void roll() throws IOException {
+
+        activeId++;
+        segments.put(activeId, new RandomAccessFile(segmentFile(activeId), "rw").getChannel());
+        liveBytes.put(activeId, 0L);
+        activeSize = 0;
+
+        logger.debug("Rolled " + name + " to segment " + activeId);
+
+        if (closed) return;
+
+        compactor.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    compact();
+                } catch (IOException e) {
+                    logger.error("Cannot compact " + name + " " + e);
+                }
+            }
+        });
+    }
+
+    // read the record at position, null if it is truncated or corrupted
+    private Record readRecord(FileChannel channel, long position, long size) throws IOException {
+
+        if (position + headerSize > size) return null;
+
+        ByteBuffer header = ByteBuffer.allocate(headerSize);
+        readFully(channel, header, position);
+        header.flip();
+
+        int checksum = header.getInt();
+        int keySize = header.getInt();
+        int valueSize = header.getInt();
+
+        //a record larger than a segment was written alone at its start
+        if (keySize < 0 || keySize > maxKeySize || valueSize < -1 || (valueSize > segmentSize && position > 0))
+            return null;
+
+        long bodyBytes = keySize + Math.max(valueSize, 0L);
+        if (position + headerSize + bodyBytes > size) return null;
+
+        int bodySize = (int) bodyBytes;
+        ByteBuffer body = ByteBuffer.allocate(bodySize);
+        readFully(channel, body, position + headerSize);
+
+        CRC32 crc = new CRC32();
+        crc.update(header.array(), 4, headerSize - 4);
+        crc.update(body.array(), 0, bodySize);
+        if ((int) crc.getValue() != checksum) return null;
+
+        Record record = new Record();
+        record.key = new String(body.array(), 0, keySize, charset);
+        if (valueSize >= 0) {
+            record.value = new byte[valueSize];
+            System.arraycopy(body.array(), keySize, record.value, 0, valueSize);
+        }
+        record.size = headerSize + bodySize;
+        return record;
+    }
+
+    private byte[] readValue(Location location) throws IOException {
+
+        ByteBuffer value = ByteBuffer.allocate(location.valueSize);
+        readFully(segments.get(location.segment), value, location.offset + headerSize + location.keySize);
+        return value.array();
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0)
+                throw new EOFException();
+        }
+    }
+
+    private File segmentFile(int id) {
+        return new File(dir_path + "seg" + id);
+    }
+}
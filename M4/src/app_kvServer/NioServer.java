@@ -0,0 +1,390 @@
+package app_kvServer;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
+import common.messages.KVMessage;
+import common.messages.MessageCodec;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Non-blocking server for many mostly idle clients.
+ * The thread running the server accepts, a few I/O threads each own a
+ * selector and read and write the connections assigned to them, and requests
+ * run on a worker pool so storage access never holds up a selector.
+ * Requests of one connection are answered one at a time in arrival order.
+ * Messages are framed like CommunicationModule does: printable ascii ended by
+ * CR, or binary frames once the client asked for them.
+ */
+public class NioServer {
+
+    private static Logger logger = Logger.getRootLogger();
+
+    private static final int readSize = 16 * 1024;
+
+    // longer messages are cut, like CommunicationModule does
+    private static final int dropSize = 1024 * 1024;
+
+    private static final byte LINE_FEED = 0x0A;
+    private static final byte RETURN = 0x0D;
+
+    private final KVServer server;
+    private final ServerSocketChannel channel;
+    private final IoLoop[] loops;
+    private final ExecutorService workers;
+
+    private final Set<Connection> connections = Collections.newSetFromMap(new ConcurrentHashMap<Connection, Boolean>());
+
+    private volatile boolean running = true;
+
+    /**
+     * @param channel  bound channel to accept on
+     */
+    public NioServer(KVServer server, ServerSocketChannel channel) throws IOException {
+        this(server, channel, Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2)),
+                Math.max(8, Runtime.getRuntime().availableProcessors() * 2));
+    }
+
+    /**
+     * @param ioThreads      threads reading and writing sockets
+     * @param workerThreads  threads answering requests
+     */
+    public NioServer(KVServer server, ServerSocketChannel channel, int ioThreads, int workerThreads) throws IOException {
+        this.server = server;
+        this.channel = channel;
+
+        loops = new IoLoop[ioThreads];
+        for (int i = 0; i < ioThreads; i++) {
+            loops[i] = new IoLoop(Selector.open());
+            Thread t = new Thread(loops[i], "nio-" + server.getName() + "-" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+
+        final AtomicInteger count = new AtomicInteger();
+        workers = Executors.newFixedThreadPool(workerThreads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "worker-" + NioServer.this.server.getName() + "-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Accept connections until the server is closed
+     */
+    public void run() {
+        int next = 0;
+        while (running) {
+            try {
+                SocketChannel client = channel.accept();
+                client.configureBlocking(false);
+                client.socket().setTcpNoDelay(true);
+
+                IoLoop loop = loops[next++ % loops.length];
+                final Connection connection = new Connection(client, loop);
+                connections.add(connection);
+                loop.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        connection.open();
+                    }
+                });
+
+                logger.info("Connected to " + client.socket().getInetAddress().getHostName()
+                        + " on port " + client.socket().getPort());
+            } catch (IOException e) {
+                if (running) {
+                    logger.error("Error! Unable to establish connection. " + e);
+                    running = false;
+                } else {
+                    logger.info("Socket closed");
+                }
+            }
+        }
+    }
+
+    public void close() {
+        running = false;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.error("Unable to close server channel " + e);
+        }
+        for (IoLoop loop : loops) loop.selector.wakeup();
+        workers.shutdownNow();
+    }
+
+    public int getConnectionCount() {
+        return connections.size();
+    }
+
+    /**
+     * Selector thread, the only thread touching the keys and output of its connections
+     */
+    private class IoLoop implements Runnable {
+        final Selector selector;
+        final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        IoLoop(Selector selector) {
+            this.selector = selector;
+        }
+
+        // run the task on this loop's thread
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        public void run() {
+            while (running) {
+                try {
+                    selector.select();
+
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) task.run();
+
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            if (key.isReadable()) connection.read();
+                            if (key.isValid() && key.isWritable()) connection.write();
+                        } catch (IOException | CancelledKeyException e) {
+                            connection.close();
+                        }
+                    }
+                } catch (IOException e) {
+                    logger.error("Selector failed " + e);
+                }
+            }
+
+            for (SelectionKey key : selector.keys()) {
+                ((Connection) key.attachment()).close();
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                logger.error("Unable to close selector " + e);
+            }
+        }
+    }
+
+    private class Connection implements Runnable {
+        final SocketChannel channel;
+        final IoLoop loop;
+        SelectionKey key;
+
+        final ClientConnection handler;
+        final Gson gson = new Gson();
+
+        // bytes of the message being received, loop thread only
+        final ByteBuffer in = ByteBuffer.allocate(readSize);
+        byte[] message = new byte[256];
+        int length;
+
+        // set by the worker answering BINARY, before the client can send a frame
+        volatile boolean binary;
+
+        // responses not written yet, loop thread only
+        final ArrayDeque<ByteBuffer> out = new ArrayDeque<>();
+
+        // received requests and whether a worker is answering them, guarded by this
+        final ArrayDeque<byte[]> requests = new ArrayDeque<>();
+        boolean busy;
+
+        Connection(SocketChannel channel, IoLoop loop) {
+            this.channel = channel;
+            this.loop = loop;
+            this.handler = new ClientConnection(null, server);
+        }
+
+        void open() {
+            try {
+                key = channel.register(loop.selector, SelectionKey.OP_READ, this);
+                send(line(handler.greeting()));
+            } catch (ClosedChannelException e) {
+                close();
+            }
+        }
+
+        void read() throws IOException {
+            in.clear();
+            int n = channel.read(in);
+            if (n < 0) {
+                logger.info("Connection lost!");
+                close();
+                return;
+            }
+
+            if (binary) {
+                readFrames(n);
+                return;
+            }
+
+            for (int i = 0; i < n; i++) {
+                byte b = in.get(i);
+                if (b == RETURN) {
+                    received(Arrays.copyOf(message, length));
+                    length = 0;
+                } else if (b > 31 && b < 127 && length < dropSize) {
+                    if (length == message.length) message = Arrays.copyOf(message, length * 2);
+                    message[length++] = b;
+                }
+            }
+        }
+
+        // split the read bytes into frames, keep an incomplete one for the next read
+        void readFrames(int n) throws IOException {
+            if (length + n > message.length) message = Arrays.copyOf(message, Math.max(length + n, message.length * 2));
+            in.flip();
+            in.get(message, length, n);
+            length += n;
+
+            int start = 0;
+            while (length - start >= MessageCodec.lengthSize) {
+                int size = ByteBuffer.wrap(message, start, MessageCodec.lengthSize).getInt();
+                MessageCodec.checkSize(size);
+                if (length - start < MessageCodec.lengthSize + size) break;
+
+                start += MessageCodec.lengthSize;
+                received(Arrays.copyOfRange(message, start, start + size));
+                start += size;
+            }
+
+            System.arraycopy(message, start, message, 0, length - start);
+            length -= start;
+        }
+
+        void received(byte[] request) {
+            synchronized (this) {
+                requests.add(request);
+                if (busy) return;
+                busy = true;
+            }
+            try {
+                workers.execute(this);
+            } catch (RejectedExecutionException e) {
+                close();
+            }
+        }
+
+        // worker: answer the requests in order until none are left
+        public void run() {
+            while (true) {
+                byte[] request;
+                synchronized (this) {
+                    request = requests.poll();
+                    if (request == null) {
+                        busy = false;
+                        return;
+                    }
+                }
+
+                try {
+                    if (binary) {
+                        reply(ByteBuffer.wrap(MessageCodec.encode(handler.process(MessageCodec.decode(ByteBuffer.wrap(request))))));
+                        continue;
+                    }
+
+                    KVMessage response = handler.process(new String(request));
+                    //the agreement itself still goes as json
+                    if (response.getStatus() == KVMessage.StatusType.BINARY_SUCCESS) binary = true;
+                    reply(line(gson.toJson(response)));
+                } catch (JsonSyntaxException e) {
+                    logger.error("Invalid Message syntax " + e.getMessage());
+                } catch (IOException e) {
+                    //a broken frame leaves no way to find the next one
+                    logger.info("Connection lost! " + e);
+                    loop.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            close();
+                        }
+                    });
+                } catch (Exception e) {
+                    logger.error("Error! Unable to answer request " + e);
+                }
+            }
+        }
+
+        // worker: hand a response to the loop thread
+        void reply(final ByteBuffer response) {
+            loop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    send(response);
+                }
+            });
+        }
+
+        ByteBuffer line(String body) {
+            byte[] bytes = body.getBytes();
+            ByteBuffer buffer = ByteBuffer.allocate(bytes.length + 2);
+            buffer.put(bytes).put(LINE_FEED).put(RETURN);
+            buffer.flip();
+            return buffer;
+        }
+
+        // loop thread
+        void send(ByteBuffer buffer) {
+            out.add(buffer);
+
+            try {
+                write();
+            } catch (IOException | CancelledKeyException e) {
+                close();
+            }
+        }
+
+        // loop thread: write what the socket takes, wait for OP_WRITE for the rest
+        void write() throws IOException {
+            if (!key.isValid()) return;
+
+            while (!out.isEmpty()) {
+                ByteBuffer buffer = out.peek();
+                channel.write(buffer);
+                if (buffer.hasRemaining()) break;
+                out.poll();
+            }
+            key.interestOps(out.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+
+        void close() {
+            if (!connections.remove(this)) return;
+
+            logger.info("Disconnecting ClientConnection !");
+            if (key != null) key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                logger.error("Unable to close connection!");
+            }
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package app_kvServer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Servers that cached a key of this server through the global service.
+ * A lease lasts as long as the remote cache keeps the value, writes to the
+ * key hand the servers with a live lease out for invalidation.
+ * Thread-safe.
+ */
+public class ReaderLeases {
+
+    private final long ttl;
+
+    // key -> server -> lease expiry, keys ordered by their latest lease
+    private final LinkedHashMap<String, HashMap<String, Long>> leases = new LinkedHashMap<>();
+
+    public ReaderLeases(long ttl) {
+        this.ttl = ttl;
+    }
+
+    public synchronized void add(String key, String server) {
+        long now = System.currentTimeMillis();
+
+        HashMap<String, Long> readers = leases.remove(key);
+        if (readers == null) readers = new HashMap<>();
+        readers.put(server, now + ttl);
+        leases.put(key, readers);
+
+        // the oldest keys only hold expired leases
+        Iterator<Map.Entry<String, HashMap<String, Long>>> it = leases.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, HashMap<String, Long>> eldest = it.next();
+            if (eldest.getKey().equals(key) || !expired(eldest.getValue(), now))
+                break;
+            it.remove();
+        }
+    }
+
+    /**
+     * Remove the leases of the key
+     * @return  servers whose lease was still live
+     */
+    public synchronized ArrayList<String> take(String key) {
+        ArrayList<String> servers = new ArrayList<>();
+        HashMap<String, Long> readers = leases.remove(key);
+        if (readers == null) return servers;
+
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, Long> reader : readers.entrySet()) {
+            if (reader.getValue() > now) servers.add(reader.getKey());
+        }
+        return servers;
+    }
+
+    public synchronized int size() {
+        return leases.size();
+    }
+
+    private static boolean expired(HashMap<String, Long> readers, long now) {
+        for (long expires : readers.values()) {
+            if (expires > now) return false;
+        }
+        return true;
+    }
+}
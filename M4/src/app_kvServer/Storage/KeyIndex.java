@@ -0,0 +1,179 @@
+package app_kvServer.Storage;
+
+import java.util.ArrayList;
+
+/**
+ * Open-addressing hash table from key to a non-negative long, using linear
+ * probing over primitive arrays. Deletes shift the rest of the probe chain
+ * back instead of leaving tombstones, so chains never grow with churn.
+ * Not thread-safe, callers hold their own lock.
+ */
+public class KeyIndex {
+
+    // grow the table above this fraction of used slots
+    public static final double defaultLoad = 0.6;
+    private final double maxLoad;
+
+    private String[] keys;
+    private int[] hashes;
+    private long[] values;
+
+    private int size;
+    private int mask;
+
+    public KeyIndex() {
+        this(1024);
+    }
+
+    public KeyIndex(int expected) {
+        this(expected, defaultLoad);
+    }
+
+    /**
+     * @param maxLoad  fraction of used slots that doubles the table, below 1
+     */
+    public KeyIndex(int expected, double maxLoad) {
+        if (maxLoad <= 0 || maxLoad >= 1) throw new IllegalArgumentException("Invalid load factor " + maxLoad);
+        this.maxLoad = maxLoad;
+
+        int capacity = 16;
+        while (capacity * maxLoad < expected) capacity <<= 1;
+        allocate(capacity);
+    }
+
+    private void allocate(int capacity) {
+        keys = new String[capacity];
+        hashes = new int[capacity];
+        values = new long[capacity];
+        mask = capacity - 1;
+        size = 0;
+    }
+
+    /**
+     * @return  value of the key, -1 if the key is not in the index
+     */
+    public long get(String key) {
+        int h = spread(key.hashCode());
+        int i = h & mask;
+
+        while (keys[i] != null) {
+            if (hashes[i] == h && keys[i].equals(key)) return values[i];
+            i = (i + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * @return  previous value of the key, -1 if the key was not in the index
+     */
+    public long put(String key, long value) {
+        if (size + 1 > maxLoad * keys.length) resize(keys.length * 2);
+
+        int h = spread(key.hashCode());
+        int i = h & mask;
+
+        while (keys[i] != null) {
+            if (hashes[i] == h && keys[i].equals(key)) {
+                long old = values[i];
+                values[i] = value;
+                return old;
+            }
+            i = (i + 1) & mask;
+        }
+
+        keys[i] = key;
+        hashes[i] = h;
+        values[i] = value;
+        size++;
+        return -1;
+    }
+
+    /**
+     * @return  removed value of the key, -1 if the key was not in the index
+     */
+    public long remove(String key) {
+        int h = spread(key.hashCode());
+        int i = h & mask;
+
+        while (keys[i] != null) {
+            if (hashes[i] == h && keys[i].equals(key)) {
+                long old = values[i];
+                shiftBack(i);
+                size--;
+                return old;
+            }
+            i = (i + 1) & mask;
+        }
+        return -1;
+    }
+
+    // close the gap at slot i by moving back later entries of the chain
+    private void shiftBack(int gap) {
+        int j = (gap + 1) & mask;
+
+        while (keys[j] != null) {
+            int home = hashes[j] & mask;
+
+            // the entry may move into the gap if the gap is between its home and j
+            if (((j - home) & mask) >= ((j - gap) & mask)) {
+                keys[gap] = keys[j];
+                hashes[gap] = hashes[j];
+                values[gap] = values[j];
+                gap = j;
+            }
+            j = (j + 1) & mask;
+        }
+        keys[gap] = null;
+    }
+
+    private void resize(int capacity) {
+        String[] oldKeys = keys;
+        long[] oldValues = values;
+
+        allocate(capacity);
+
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != null) put(oldKeys[i], oldValues[i]);
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return keys.length;
+    }
+
+    /**
+     * @return  {average, longest} distance of the entries from their home slot
+     */
+    public double[] probeLength() {
+        long total = 0;
+        long longest = 0;
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] == null) continue;
+            long distance = (i - hashes[i]) & mask;
+            total += distance;
+            longest = Math.max(longest, distance);
+        }
+        return new double[]{size == 0 ? 0 : (double) total / size, longest};
+    }
+
+    public ArrayList<String> keys() {
+        ArrayList<String> list = new ArrayList<>(size);
+        for (String key : keys) {
+            if (key != null) list.add(key);
+        }
+        return list;
+    }
+
+    public void clear() {
+        allocate(16);
+    }
+
+    private static int spread(int h) {
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
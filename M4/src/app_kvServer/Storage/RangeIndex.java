@@ -0,0 +1,200 @@
+package app_kvServer.Storage;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+
+/**
+ * Keys ordered by their MD5 position on the hash ring. The 128-bit hashes
+ * are kept as two sorted long arrays, so a hash range is found with a
+ * binary search and only the keys inside it are visited.
+ * Not thread-safe, callers hold their own lock.
+ */
+public class RangeIndex {
+
+    // hash halves with the sign bit flipped, so signed order is ring order
+    private long[] high;
+    private long[] low;
+    private String[] keys;
+
+    private int size;
+
+    public RangeIndex() {
+        allocate(1024);
+    }
+
+    private void allocate(int capacity) {
+        high = new long[capacity];
+        low = new long[capacity];
+        keys = new String[capacity];
+        size = 0;
+    }
+
+    /**
+     * Add a key, does nothing if the key is already in the index
+     */
+    public void add(String key) {
+        long[] hash = hash(key);
+        int i = find(hash[0], hash[1], key);
+        if (i >= 0) return;
+        i = -(i + 1);
+
+        if (size == keys.length) {
+            high = Arrays.copyOf(high, size * 2);
+            low = Arrays.copyOf(low, size * 2);
+            keys = Arrays.copyOf(keys, size * 2);
+        }
+
+        System.arraycopy(high, i, high, i + 1, size - i);
+        System.arraycopy(low, i, low, i + 1, size - i);
+        System.arraycopy(keys, i, keys, i + 1, size - i);
+
+        high[i] = hash[0];
+        low[i] = hash[1];
+        keys[i] = key;
+        size++;
+    }
+
+    /**
+     * Add keys that are not in the index yet with a single sort, used when
+     * the index is rebuilt at startup
+     */
+    public void addAll(Collection<String> added) {
+        int total = size + added.size();
+        final long[] h = Arrays.copyOf(high, Math.max(total, keys.length));
+        final long[] l = Arrays.copyOf(low, h.length);
+        String[] k = Arrays.copyOf(keys, h.length);
+
+        int n = size;
+        for (String key : added) {
+            long[] hash = hash(key);
+            h[n] = hash[0];
+            l[n] = hash[1];
+            k[n] = key;
+            n++;
+        }
+
+        Integer[] order = new Integer[total];
+        for (int i = 0; i < total; i++) order[i] = i;
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return RangeIndex.compare(h[a], l[a], h[b], l[b]);
+            }
+        });
+
+        allocate(h.length);
+        for (int i = 0; i < total; i++) {
+            high[i] = h[order[i]];
+            low[i] = l[order[i]];
+            keys[i] = k[order[i]];
+        }
+        size = total;
+    }
+
+    /**
+     * Remove a key, does nothing if the key is not in the index
+     */
+    public void remove(String key) {
+        long[] hash = hash(key);
+        int i = find(hash[0], hash[1], key);
+        if (i < 0) return;
+
+        System.arraycopy(high, i + 1, high, i, size - i - 1);
+        System.arraycopy(low, i + 1, low, i, size - i - 1);
+        System.arraycopy(keys, i + 1, keys, i, size - i - 1);
+
+        size--;
+        keys[size] = null;
+    }
+
+    /**
+     * Keys whose hash is within the range
+     * @param range  {from, to} hex hash range, wraps around when from >= to
+     */
+    public ArrayList<String> keysIn(String[] range) {
+        long[] from = parse(range[0]);
+        long[] to = parse(range[1]);
+
+        int start = lowerBound(from[0], from[1]);
+        int end = lowerBound(to[0], to[1]);
+
+        ArrayList<String> list = new ArrayList<>();
+
+        if (start < end) {
+            for (int i = start; i < end; i++) list.add(keys[i]);
+        } else if (compare(from[0], from[1], to[0], to[1]) >= 0) {
+            // wraps past the top of the ring
+            for (int i = start; i < size; i++) list.add(keys[i]);
+            for (int i = 0; i < end; i++) list.add(keys[i]);
+        }
+        return list;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        allocate(1024);
+    }
+
+    // position of the key, or -(insertion point + 1) if it is not there
+    private int find(long h, long l, String key) {
+        int i = lowerBound(h, l);
+
+        // distinct keys may share a hash
+        for (int j = i; j < size && high[j] == h && low[j] == l; j++) {
+            if (keys[j].equals(key)) return j;
+        }
+        return -(i + 1);
+    }
+
+    // first position whose hash is not below the given hash
+    private int lowerBound(long h, long l) {
+        int lo = 0;
+        int hi = size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (compare(high[mid], low[mid], h, l) < 0) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    private static int compare(long h1, long l1, long h2, long l2) {
+        if (h1 != h2) return h1 < h2 ? -1 : 1;
+        if (l1 != l2) return l1 < l2 ? -1 : 1;
+        return 0;
+    }
+
+    private static long[] hash(String key) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("MD5");
+            md.update(key.getBytes());
+            ByteBuffer digest = ByteBuffer.wrap(md.digest());
+            return new long[]{digest.getLong() ^ Long.MIN_VALUE, digest.getLong() ^ Long.MIN_VALUE};
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 not available", e);
+        }
+    }
+
+    // 32 hex digits to flipped halves
+    private static long[] parse(String hex) {
+        byte[] digits = hex.getBytes(StandardCharsets.US_ASCII);
+        return new long[]{parseHalf(digits, 0) ^ Long.MIN_VALUE, parseHalf(digits, 16) ^ Long.MIN_VALUE};
+    }
+
+    private static long parseHalf(byte[] digits, int offset) {
+        long value = 0;
+        for (int i = offset; i < offset + 16; i++) {
+            value = (value << 4) | Character.digit(digits[i], 16);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,267 @@
+package app_kvServer.Storage;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Fixed-size slots of one size class, spread over files named prefix0,
+ * prefix1, ... Files are added one at a time when every slot is taken.
+ * Freed slots go on a free list and are handed out before new ones.
+ * Not thread-safe, callers hold their own lock.
+ */
+public class SlabClass {
+
+    /**
+     * Receives the header of every slot while the class is scanned
+     */
+    public interface Loader {
+        void load(SlabClass slab, long slot, ByteBuffer header) throws IOException;
+    }
+
+    // read this much at once when scanning small slots
+    private static final int scanChunk = 1024 * 1024;
+
+    private final File dir;
+    private final String prefix;
+    private final int slotSize;
+    private final int slotsPerFile;
+    private final boolean mapped;
+
+    private ArrayList<FileChannel> channels = new ArrayList<>();
+    private ArrayList<MappedByteBuffer> maps = new ArrayList<>();
+
+    private BitSet used = new BitSet();
+
+    // freed slots below the high water mark
+    private long[] free = new long[16];
+    private int freeCount;
+
+    // slots at and above this were never handed out
+    private long next;
+
+    public SlabClass(File dir, String prefix, int slotSize, int slotsPerFile, boolean mapped) {
+        this.dir = dir;
+        this.prefix = prefix;
+        this.slotSize = slotSize;
+        this.slotsPerFile = slotsPerFile;
+        this.mapped = mapped;
+    }
+
+    /**
+     * Open the existing files of the class and pass every slot header to the loader
+     */
+    public void open(int headerSize, Loader loader) throws IOException {
+        for (int i = 0; new File(dir, prefix + i).exists(); i++) {
+            addFile(i);
+        }
+
+        for (int i = 0; i < channels.size(); i++) {
+            scan(i, headerSize, loader);
+        }
+
+        rebuildFreeList();
+    }
+
+    // every clear slot below the highest used one is free
+    private void rebuildFreeList() {
+        next = used.length();
+        freeCount = 0;
+        for (int slot = used.nextClearBit(0); slot < next; slot = used.nextClearBit(slot + 1)) {
+            push(slot);
+        }
+    }
+
+    private void scan(int i, int headerSize, Loader loader) throws IOException {
+        long base = (long) i * slotsPerFile;
+
+        if (mapped) {
+            ByteBuffer map = maps.get(i).duplicate();
+            for (int s = 0; s < slotsPerFile; s++) {
+                if (map.get(s * slotSize) == 0) continue;
+                map.limit(s * slotSize + headerSize).position(s * slotSize);
+                loader.load(this, base + s, map.slice());
+                map.clear();
+            }
+            return;
+        }
+
+        // large slots: one header read per slot
+        if (slotSize >= scanChunk / 16) {
+            ByteBuffer header = ByteBuffer.allocate(headerSize);
+            for (int s = 0; s < slotsPerFile; s++) {
+                header.clear();
+                readFully(channels.get(i), header, (long) s * slotSize);
+                if (header.get(0) != 0) loader.load(this, base + s, header);
+            }
+            return;
+        }
+
+        // small slots: read many slots at once
+        int perChunk = scanChunk / slotSize;
+        ByteBuffer chunk = ByteBuffer.allocate(perChunk * slotSize);
+        for (int s = 0; s < slotsPerFile; s += perChunk) {
+            int count = Math.min(perChunk, slotsPerFile - s);
+            chunk.clear().limit(count * slotSize);
+            readFully(channels.get(i), chunk, (long) s * slotSize);
+            for (int j = 0; j < count; j++) {
+                if (chunk.get(j * slotSize) == 0) continue;
+                chunk.limit(j * slotSize + headerSize).position(j * slotSize);
+                loader.load(this, base + s + j, chunk.slice());
+                chunk.clear().limit(count * slotSize);
+            }
+        }
+    }
+
+    public int getSlotSize() {
+        return slotSize;
+    }
+
+    public int getFileCount() {
+        return channels.size();
+    }
+
+    public int getUsedCount() {
+        return used.cardinality();
+    }
+
+    /**
+     * @return  highest used slot, -1 if the class is empty
+     */
+    public long getHighestUsed() {
+        return used.length() - 1;
+    }
+
+    /**
+     * @return  lowest slot that is not used
+     */
+    public long getLowestFree() {
+        return used.nextClearBit(0);
+    }
+
+    /**
+     * Rebuild the free list and delete the files after the highest used slot
+     */
+    public void shrink() throws IOException {
+        rebuildFreeList();
+
+        int keep = (int) ((next + slotsPerFile - 1) / slotsPerFile);
+        for (int i = channels.size() - 1; i >= keep; i--) {
+            channels.remove(i).close();
+            if (mapped) maps.remove(i);
+            new File(dir, prefix + i).delete();
+        }
+    }
+
+    /**
+     * Mark a slot found while loading as used
+     */
+    public void markUsed(long slot) {
+        used.set((int) slot);
+    }
+
+    /**
+     * Take a free slot, adds a file when the class is full
+     */
+    public long allocate() throws IOException {
+        long slot = (freeCount > 0) ? free[--freeCount] : next++;
+
+        if (slot >= (long) channels.size() * slotsPerFile) addFile(channels.size());
+
+        used.set((int) slot);
+        return slot;
+    }
+
+    /**
+     * Return a slot to the free list
+     */
+    public void free(long slot) {
+        if (!used.get((int) slot)) return;
+        used.clear((int) slot);
+        push(slot);
+    }
+
+    private void push(long slot) {
+        if (freeCount == free.length) free = Arrays.copyOf(free, freeCount * 2);
+        free[freeCount++] = slot;
+    }
+
+    public void read(long slot, ByteBuffer buffer, int offset) throws IOException {
+        int i = (int) (slot / slotsPerFile);
+        long position = (slot % slotsPerFile) * slotSize + offset;
+
+        if (mapped) {
+            ByteBuffer map = maps.get(i).duplicate();
+            map.position((int) position);
+            map.limit((int) position + buffer.remaining());
+            buffer.put(map);
+            return;
+        }
+
+        readFully(channels.get(i), buffer, position);
+    }
+
+    public void write(long slot, ByteBuffer buffer, int offset) throws IOException {
+        int i = (int) (slot / slotsPerFile);
+        long position = (slot % slotsPerFile) * slotSize + offset;
+
+        if (mapped) {
+            ByteBuffer map = maps.get(i).duplicate();
+            map.position((int) position);
+            map.put(buffer);
+            return;
+        }
+
+        FileChannel channel = channels.get(i);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position());
+        }
+    }
+
+    /**
+     * Force every write of the class to disk
+     */
+    public void force() throws IOException {
+        if (mapped) {
+            for (MappedByteBuffer map : maps) map.force();
+            return;
+        }
+        for (FileChannel channel : channels) channel.force(false);
+    }
+
+    public void close() throws IOException {
+        for (FileChannel channel : channels) channel.close();
+
+        //mappings are released once they are unreachable
+        channels.clear();
+        maps.clear();
+    }
+
+    // create file i with the full length if it does not exist yet and open it
+    private void addFile(int i) throws IOException {
+        long length = (long) slotSize * slotsPerFile;
+
+        File file = new File(dir, prefix + i);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        if (raf.length() < length) raf.setLength(length);
+
+        FileChannel channel = raf.getChannel();
+        channels.add(channel);
+
+        if (mapped) maps.add(channel.map(FileChannel.MapMode.READ_WRITE, 0, length));
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0)
+                throw new EOFException();
+        }
+    }
+}
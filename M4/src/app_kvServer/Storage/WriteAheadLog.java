@@ -0,0 +1,163 @@
+package app_kvServer.Storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of writes that have not been checkpointed into the
+ * storage files yet. A batch of records is appended with one write and
+ * made durable with one force.
+ * Not thread-safe, callers hold their own lock.
+ */
+public class WriteAheadLog {
+
+    /**
+     * one record contains:
+     * 4 bytes for checksum of the rest of the record;
+     * 4 bytes for key size, 4 bytes for value size (-1 for a delete);
+     * key bytes, value bytes;
+     */
+    private static final int headerSize = 4 + 4 + 4;
+
+    // limits of the block store, larger sizes can only come from a torn or garbage tail
+    private static final int maxKeySize = 20;
+    private static final int maxValueSize = 120000;
+
+    public static class Record {
+        public final String key;
+
+        // null for a delete
+        public final byte[] value;
+
+        public Record(String key, byte[] value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    private final FileChannel channel;
+
+    private long size;
+
+    public WriteAheadLog(File file) throws IOException {
+        channel = new RandomAccessFile(file, "rw").getChannel();
+        size = channel.size();
+    }
+
+    /**
+     * Read every complete record, a torn tail from a crash is cut off
+     */
+    public ArrayList<Record> recover() throws IOException {
+        ArrayList<Record> records = new ArrayList<>();
+
+        long position = 0;
+        ByteBuffer header = ByteBuffer.allocate(headerSize);
+
+        while (position + headerSize <= size) {
+            header.clear();
+            readFully(header, position);
+
+            int keySize = header.getInt(4);
+            int valueSize = header.getInt(8);
+            if (keySize < 0 || keySize > maxKeySize || valueSize < -1 || valueSize > maxValueSize) break;
+
+            int bodySize = keySize + Math.max(valueSize, 0);
+            if (position + headerSize + bodySize > size) break;
+
+            ByteBuffer body = ByteBuffer.allocate(bodySize);
+            readFully(body, position + headerSize);
+
+            CRC32 crc = new CRC32();
+            crc.update(header.array(), 4, headerSize - 4);
+            crc.update(body.array(), 0, bodySize);
+            if ((int) crc.getValue() != header.getInt(0)) break;
+
+            String key = new String(body.array(), 0, keySize, StandardCharsets.ISO_8859_1);
+            byte[] value = null;
+            if (valueSize >= 0) {
+                value = new byte[valueSize];
+                System.arraycopy(body.array(), keySize, value, 0, valueSize);
+            }
+            records.add(new Record(key, value));
+
+            position += headerSize + bodySize;
+        }
+
+        if (position < size) {
+            channel.truncate(position);
+            size = position;
+        }
+        return records;
+    }
+
+    /**
+     * Append the records with a single write, not durable until sync
+     */
+    public void append(List<Record> records) throws IOException {
+        int total = 0;
+        for (Record record : records) total += recordSize(record);
+
+        ByteBuffer buffer = ByteBuffer.allocate(total);
+        for (Record record : records) {
+            byte[] key = record.key.getBytes(StandardCharsets.ISO_8859_1);
+            int start = buffer.position();
+
+            buffer.putInt(0);
+            buffer.putInt(key.length);
+            buffer.putInt(record.value == null ? -1 : record.value.length);
+            buffer.put(key);
+            if (record.value != null) buffer.put(record.value);
+
+            CRC32 crc = new CRC32();
+            crc.update(buffer.array(), start + 4, buffer.position() - start - 4);
+            buffer.putInt(start, (int) crc.getValue());
+        }
+        buffer.flip();
+
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, size + buffer.position());
+        }
+        size += total;
+    }
+
+    /**
+     * Force appended records to disk
+     */
+    public void sync() throws IOException {
+        channel.force(false);
+    }
+
+    public long size() {
+        return size;
+    }
+
+    /**
+     * Drop every record, once they are durable in the storage files
+     */
+    public void truncate() throws IOException {
+        channel.truncate(0);
+        channel.force(false);
+        size = 0;
+    }
+
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private static int recordSize(Record record) {
+        return headerSize + record.key.length() + (record.value == null ? 0 : record.value.length);
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) return;
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package app_kvServer;
+
+import org.apache.log4j.Logger;
+
+import java.lang.reflect.Method;
+
+/**
+ * Starts tasks on virtual threads when the JVM has them (Java 21 and later).
+ * The build targets Java 8, so the JDK method is looked up at runtime and
+ * older JVMs get a platform thread per task instead.
+ */
+public final class VirtualThreads {
+
+    private static Logger logger = Logger.getRootLogger();
+
+    // Thread.startVirtualThread(Runnable), null before Java 21
+    private static final Method startVirtual = lookup();
+
+    private VirtualThreads() {
+    }
+
+    private static Method lookup() {
+        try {
+            return Thread.class.getMethod("startVirtualThread", Runnable.class);
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    public static boolean isAvailable() {
+        return startVirtual != null;
+    }
+
+    /**
+     * Start the task on a virtual thread, or on a platform thread if the JVM has none
+     */
+    public static Thread start(Runnable task, String name) {
+        if (startVirtual != null) {
+            try {
+                Thread thread = (Thread) startVirtual.invoke(null, task);
+                thread.setName(name);
+                return thread;
+            } catch (Exception e) {
+                logger.warn("Cannot start virtual thread, using a platform thread " + e);
+            }
+        }
+
+        Thread thread = new Thread(task, name);
+        thread.start();
+        return thread;
+    }
+}
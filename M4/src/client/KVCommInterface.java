@@ -2,6 +2,9 @@ package client;
 
 import common.messages.KVMessage;
 
+import java.util.List;
+import java.util.Map;
+
 public interface KVCommInterface {
 
 	/**
@@ -36,6 +39,22 @@ public interface KVCommInterface {
 	 */
 	public KVMessage put(String key, String value) throws Exception;
 
+	/**
+	 * Inserts a key-value pair with a binary value into the KVServer. The
+	 * bytes are stored verbatim and returned by
+	 * {@link KVMessage#getValueBytes()} of a later get.
+	 *
+	 * @param key
+	 *            the key that identifies the given value.
+	 * @param value
+	 *            the value bytes, null or empty deletes the key.
+	 * @return a message that confirms the insertion of the tuple or an error.
+	 * @throws Exception
+	 *             if put command cannot be executed (e.g. not connected to any
+	 *             KV server).
+	 */
+	public KVMessage put(String key, byte[] value) throws Exception;
+
 	/**
 	 * Retrieves the value for a given key from the KVServer.
 	 *
@@ -47,4 +66,30 @@ public interface KVCommInterface {
 	 *             KV server).
 	 */
 	public KVMessage get(String key) throws Exception;
+
+	/**
+	 * Inserts many key-value pairs, keeping several requests in flight on the
+	 * connection instead of waiting for each answer. Pairs of one call are
+	 * written in no particular order.
+	 *
+	 * @param pairs
+	 *            keys and their value bytes, null or empty deletes the key.
+	 * @return the messages confirming each insertion or an error, in the
+	 *         iteration order of the pairs.
+	 * @throws Exception
+	 *             if the put commands cannot be executed.
+	 */
+	public List<KVMessage> putAll(Map<String, byte[]> pairs) throws Exception;
+
+	/**
+	 * Retrieves the values of many keys, keeping several requests in flight
+	 * on the connection instead of waiting for each answer.
+	 *
+	 * @param keys
+	 *            the keys that identify the values.
+	 * @return the values indexed by the keys, in the order of the keys.
+	 * @throws Exception
+	 *             if the get commands cannot be executed.
+	 */
+	public List<KVMessage> getAll(List<String> keys) throws Exception;
 }
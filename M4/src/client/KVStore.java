@@ -1,7 +1,6 @@
 package client;
 
 import app_kvClient.ClientSocketListener;
-import com.google.gson.Gson;
 import com.google.gson.JsonSyntaxException;
 import common.messages.KVMessage;
 import common.messages.Message;
@@ -12,13 +11,13 @@ import ecs.IECSNode;
 import org.apache.log4j.Logger;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 
 public class KVStore implements KVCommInterface {
     private Logger logger = Logger.getRootLogger();
 
     private HashMap<String, CommunicationModule> communicationModules;
-    private Gson gson;
     private String firstServerName = "server8";
 
     private boolean loggedIn = false;
@@ -30,6 +29,10 @@ public class KVStore implements KVCommInterface {
 
     private int x, y;
 
+    // requests a pipeline keeps in flight, below what a server answers at once
+    private static final int pipelineWindow = 64;
+    private int lastId = 0;
+
 
     /**
      * Initialize KVStore with address and port of KVServer
@@ -41,8 +44,6 @@ public class KVStore implements KVCommInterface {
 
         communicationModules = new HashMap<>();
         communicationModules.put(firstServerName, new CommunicationModule(address, port));
-
-        gson = new Gson();
     }
 
     public void addListener(ClientSocketListener listener, int x, int y) {
@@ -52,12 +53,10 @@ public class KVStore implements KVCommInterface {
     }
 
     public KVMessage sendMessage(CommunicationModule cm, KVMessage msgReq) throws IOException {
-        String msgJsonReq = gson.toJson(msgReq);
-        cm.sendMessage(msgJsonReq);
-        String msgJsonRes = cm.receiveMessage();
+        cm.sendKVMessage(msgReq);
         KVMessage msg = null;
         try {
-            msg = gson.fromJson(msgJsonRes, Message.class);
+            msg = cm.receiveKVMessage();
         } catch (JsonSyntaxException e) {
             System.out.println(e.getMessage());
         }
@@ -67,53 +66,133 @@ public class KVStore implements KVCommInterface {
     public KVMessage handleServerLogic(KVMessage msg) {
 
         KVMessage response = null;
-        String serverName = null;
+        String serverName = responsibleServer();
         try {
-            if (meta == null) {
-                serverName = firstServerName;
-                response = sendMessage(communicationModules.get(firstServerName), msg);
-            } else {
+            response = sendMessage(connection(serverName), msg);
 
-                IECSNode node = meta.getServerByLocation(x, y);
+            switch (response.getStatus()) {
+                case SERVER_NOT_RESPONSIBLE:
+                    meta = MetaData.JsonToMeta(response.getValue());
+                    return handleServerLogic(msg);
+            }
 
-                if (node == null) {
-                    node = meta.getServerRepo().first();
-                }
+        } catch (IOException e) {
+            lostServer(serverName);
+        }
 
-                logger.debug("responsible server is " + node.getNodeName());
+        return response;
+    }
 
-                serverName = node.getNodeName();
-                if (communicationModules.get(node.getNodeName()) == null) {
-                    CommunicationModule ci = new CommunicationModule(node.getNodeHost(), node.getNodePort());
-                    connectTo(ci);
-                    communicationModules.put(node.getNodeName(), ci);
-                }
+    /**
+     * Send the requests to the responsible server with up to pipelineWindow of
+     * them in flight on its connection. The server answers requests of one key
+     * in the order they were sent and requests of different keys in any order.
+     * Requests left unanswered or sent to the wrong server are retried one by one.
+     *
+     * @return  responses in the order of the requests
+     */
+    public List<KVMessage> pipeline(List<KVMessage> requests) {
+        KVMessage[] responses = new KVMessage[requests.size()];
 
-                response = sendMessage(communicationModules.get(node.getNodeName()), msg);
+        // ids of the requests in flight and their index, oldest first
+        LinkedHashMap<Integer, Integer> inFlight = new LinkedHashMap<>();
+        int sent = 0;
 
+        String serverName = responsibleServer();
+        try {
+            CommunicationModule cm = connection(serverName);
+
+            while (sent < requests.size() || !inFlight.isEmpty()) {
+                while (sent < requests.size() && inFlight.size() < pipelineWindow) {
+                    KVMessage request = requests.get(sent);
+                    request.setId(nextId());
+                    cm.sendKVMessage(request);
+                    inFlight.put(request.getId(), sent++);
+                }
+
+                KVMessage response;
+                try {
+                    response = cm.receiveKVMessage();
+                } catch (JsonSyntaxException e) {
+                    throw new IOException(e.getMessage());
+                }
+                if (response == null) continue;
+
+                Integer index = inFlight.remove(response.getId());
+                //servers without request ids answer in order
+                if (index == null && response.getId() == 0)
+                    index = inFlight.remove(inFlight.keySet().iterator().next());
+                if (index == null) {
+                    logger.warn("Response to no request " + response.getId());
+                    continue;
+                }
+                responses[index] = response;
             }
+        } catch (IOException e) {
+            lostServer(serverName);
+        }
 
-            switch (response.getStatus()) {
-                case SERVER_NOT_RESPONSIBLE:
-                    meta = MetaData.JsonToMeta(response.getValue());
-                    return handleServerLogic(msg);
+        for (int i = 0; i < responses.length; i++) {
+            if (responses[i] != null && responses[i].getStatus() == KVMessage.StatusType.SERVER_NOT_RESPONSIBLE) {
+                meta = MetaData.JsonToMeta(responses[i].getValue());
+                responses[i] = null;
             }
 
-        } catch (IOException e) {
-            communicationModules.remove(serverName);
-            if (meta != null)
-                meta.removeNode(serverName);
-            logger.info("Responsible server is down, trying other servers. ");
+            KVMessage request = requests.get(i);
+            request.setId(0);
+            while (responses[i] == null)
+                responses[i] = handleServerLogic(request);
         }
+        return Arrays.asList(responses);
+    }
 
-        return response;
+    // server the requests of this client go to
+    private String responsibleServer() {
+        if (meta == null)
+            return firstServerName;
+
+        IECSNode node = meta.getServerByLocation(x, y);
+
+        if (node == null) {
+            node = meta.getServerRepo().first();
+        }
+
+        logger.debug("responsible server is " + node.getNodeName());
+        return node.getNodeName();
     }
 
+    // connection to the server, opened on first use
+    private CommunicationModule connection(String serverName) throws IOException {
+        CommunicationModule ci = communicationModules.get(serverName);
+        if (ci == null) {
+            IECSNode node = meta.getNode(serverName);
+            ci = new CommunicationModule(node.getNodeHost(), node.getNodePort());
+            connectTo(ci);
+            communicationModules.put(serverName, ci);
+        }
+        return ci;
+    }
+
+    private void lostServer(String serverName) {
+        communicationModules.remove(serverName);
+        if (meta != null)
+            meta.removeNode(serverName);
+        logger.info("Responsible server is down, trying other servers. ");
+    }
+
+    private int nextId() {
+        //0 marks requests without id
+        if (++lastId <= 0)
+            lastId = 1;
+        return lastId;
+    }
 
     private void connectTo(CommunicationModule ci) throws IOException {
         ci.connect();
         ci.setStream();
         ci.receiveMessage();
+        //binary frames where the server supports them, json otherwise
+        ci.negotiateBinary();
     }
 
 
@@ -162,6 +241,11 @@ public class KVStore implements KVCommInterface {
 
     @Override
     public KVMessage put(String key, String value) throws IOException {
+        return put(key, (value == null) ? null : value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public KVMessage put(String key, byte[] value) throws IOException {
         key += (username == null) ? "" : username;
 
         KVMessage msgReq = new Message(KVMessage.StatusType.PUT, key, value);
@@ -199,6 +283,30 @@ public class KVStore implements KVCommInterface {
         return response;
     }
 
+    @Override
+    public List<KVMessage> putAll(Map<String, byte[]> pairs) {
+        ArrayList<KVMessage> requests = new ArrayList<>();
+        for (Map.Entry<String, byte[]> pair : pairs.entrySet()) {
+            String key = pair.getKey() + ((username == null) ? "" : username);
+            KVMessage msgReq = new Message(KVMessage.StatusType.PUT, key, pair.getValue());
+            msgReq.setLocation(x, y);
+            requests.add(msgReq);
+        }
+        return pipeline(requests);
+    }
+
+    @Override
+    public List<KVMessage> getAll(List<String> keys) {
+        ArrayList<KVMessage> requests = new ArrayList<>();
+        for (String key : keys) {
+            key += (username == null) ? "" : username;
+            KVMessage msgReq = new Message(KVMessage.StatusType.GET, key, "");
+            msgReq.setLocation(x, y);
+            requests.add(msgReq);
+        }
+        return pipeline(requests);
+    }
+
     public void logIn(String username) {
         System.out.println("====== YOU HAVE SUCCESSFULLY LOG INTO THE SYSTEM AS " + username + " ======");
         this.username = username;
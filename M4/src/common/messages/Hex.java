@@ -0,0 +1,21 @@
+package common.messages;
+
+/**
+ * Upper case hex of hash digests, the form positions on the hash ring are compared in
+ */
+public final class Hex {
+
+    private static final char[] digits = "0123456789ABCDEF".toCharArray();
+
+    private Hex() {
+    }
+
+    public static String print(byte[] bytes) {
+        char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            hex[2 * i] = digits[(bytes[i] >> 4) & 0xf];
+            hex[2 * i + 1] = digits[bytes[i] & 0xf];
+        }
+        return new String(hex);
+    }
+}
@@ -17,7 +17,13 @@ public interface KVMessage {
 
 		SERVER_STOPPED,         /* Server is stopped, no requests are processed */
 		SERVER_WRITE_LOCK,      /* Server locked for out, only get possible */
-		SERVER_NOT_RESPONSIBLE  /* Request not successful, server not responsible for key */
+		SERVER_NOT_RESPONSIBLE, /* Request not successful, server not responsible for key */
+
+		STATS,                  /* Stats - admin request for the cache counters */
+		STATS_SUCCESS,          /* cache counters of the server as json in the value */
+
+		BINARY,                 /* ask to send further messages as binary frames */
+		BINARY_SUCCESS          /* both ends switch to binary frames after this reply */
 	}
 
 	/**
@@ -32,6 +38,12 @@ public interface KVMessage {
 	 */
 	public String getValue();
 
+	/**
+	 * @return the value bytes that are associated with this message,
+	 * 		null if not value is associated.
+	 */
+	public byte[] getValueBytes();
+
 	/**
 	 * @return a status string that is used to identify request types,
 	 * response types and error types associated to the message.
@@ -46,4 +58,12 @@ public interface KVMessage {
 	public void setLocation(int x, int y);
 
 	public int[] getLocation();
+
+	/**
+	 * @return  id the client gave a pipelined request, echoed in its response,
+	 * 		0 for requests answered in the order they were sent.
+	 */
+	public int getId();
+
+	public void setId(int id);
 }
@@ -1,24 +1,55 @@
 package common.messages;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
-
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.google.gson.TypeAdapterFactory;
+import com.google.gson.annotations.JsonAdapter;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 import ecs.IECSNode;
 
+@JsonAdapter(Message.JsonForm.class)
 public class Message implements KVMessage, Serializable {
 
     public StatusType type;
     public String key;
     public String value;
 
+    // base64 of a value that is not printable ascii, sent instead of value
+    public String data;
+
+    // the value as given, saves decoding it again, never part of the json.
+    // value or data are only filled from it when the message becomes json
+    private transient byte[] bytes;
+
     private int x = -1;
     private int y = -1;
 
+    // request id of a pipelined request and its response, 0 for none
+    private int id;
+
     public Message(StatusType type, String key, String value) {
         this.type = type;
         this.key = key;
         this.value = value;
     }
 
+    /**
+     * Message carrying raw value bytes, printable ascii values still go as text in json
+     */
+    public Message(StatusType type, String key, byte[] value) {
+        this.type = type;
+        this.key = key;
+        setValueBytes(value);
+    }
+
     public void setType(StatusType type) {
         this.type = type;
     }
@@ -29,6 +60,54 @@ public class Message implements KVMessage, Serializable {
 
     public void setValue(String value) {
         this.value = value;
+        this.data = null;
+        this.bytes = null;
+    }
+
+    public void setValueBytes(byte[] bytes) {
+        value = null;
+        data = null;
+        this.bytes = bytes;
+    }
+
+    // fill value or data from the raw bytes, binary frames never need either
+    private void encode() {
+        if (bytes == null || value != null || data != null) return;
+
+        for (byte b : bytes) {
+            if (b < 32 || b > 126) {
+                data = Base64.getEncoder().encodeToString(bytes);
+                return;
+            }
+        }
+        value = new String(bytes, StandardCharsets.US_ASCII);
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        encode();
+        out.defaultWriteObject();
+    }
+
+    /**
+     * Encodes the raw value bytes of a message right before it is written as json
+     */
+    public static class JsonForm implements TypeAdapterFactory {
+        @Override
+        public <T> TypeAdapter<T> create(Gson gson, TypeToken<T> type) {
+            final TypeAdapter<T> delegate = gson.getDelegateAdapter(this, type);
+            return new TypeAdapter<T>() {
+                @Override
+                public void write(JsonWriter out, T message) throws IOException {
+                    if (message instanceof Message) ((Message) message).encode();
+                    delegate.write(out, message);
+                }
+
+                @Override
+                public T read(JsonReader in) throws IOException {
+                    return delegate.read(in);
+                }
+            };
+        }
     }
 
     @Override
@@ -46,9 +125,26 @@ public class Message implements KVMessage, Serializable {
      * 		null if not value is associated.
      */
     public String getValue() {
+        if (value == null && (data != null || bytes != null))
+            return new String(getValueBytes(), StandardCharsets.UTF_8);
         return value;
     }
 
+    @Override
+    /**
+     * @return the value bytes that are associated with this message,
+     * 		null if not value is associated.
+     */
+    public byte[] getValueBytes() {
+        if (bytes != null)
+            return bytes;
+        if (data != null)
+            return Base64.getDecoder().decode(data);
+        if (value != null)
+            return value.getBytes(StandardCharsets.UTF_8);
+        return null;
+    }
+
     @Override
     /**
      * @return a status string that is used to identify request types,
@@ -69,6 +165,16 @@ public class Message implements KVMessage, Serializable {
         return new int[] {this.x, this.y};
     }
 
+    @Override
+    public int getId() {
+        return id;
+    }
+
+    @Override
+    public void setId(int id) {
+        this.id = id;
+    }
+
     @Override
     public IECSNode getResponsibleServer() {
         return null;
@@ -0,0 +1,115 @@
+package common.messages;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Binary framing of messages, used once a client and server agreed on it.
+ *
+ * one frame contains:
+ * 4 bytes for the size of the rest of the frame;
+ * 1 byte for the status;
+ * 4 bytes for the request id, 0 for none;
+ * 4 bytes each for the location x and y, -1 if there is none;
+ * 2 bytes for key size (-1 for no key), key bytes in utf-8;
+ * 4 bytes for value size (-1 for no value), value bytes;
+ */
+public final class MessageCodec {
+
+    public static final int lengthSize = 4;
+
+    private static final int headerSize = 1 + 4 + 4 + 4 + 2 + 4;
+
+    // well above the largest value or metadata a message carries
+    public static final int maxFrameSize = 2 * 1024 * 1024;
+
+    private static final KVMessage.StatusType[] statuses = KVMessage.StatusType.values();
+
+    private MessageCodec() {
+    }
+
+    /**
+     * @return  the whole frame, size included
+     */
+    public static byte[] encode(KVMessage message) {
+        byte[] value = message.getValueBytes();
+        ByteBuffer header = header(message);
+
+        byte[] frame = new byte[header.remaining() + ((value == null) ? 0 : value.length)];
+        header.get(frame, 0, header.remaining());
+        if (value != null) System.arraycopy(value, 0, frame, frame.length - value.length, value.length);
+        return frame;
+    }
+
+    /**
+     * Everything of the frame but the value bytes, so a gathering write can send
+     * the value right after it without copying
+     *
+     * @return  buffer ready to be read
+     */
+    public static ByteBuffer header(KVMessage message) {
+        byte[] key = (message.getKey() == null) ? null : message.getKey().getBytes(StandardCharsets.UTF_8);
+        byte[] value = message.getValueBytes();
+        int[] location = message.getLocation();
+
+        int keySize = (key == null) ? 0 : key.length;
+        ByteBuffer header = ByteBuffer.allocate(lengthSize + headerSize + keySize);
+        header.putInt(headerSize + keySize + ((value == null) ? 0 : value.length));
+        header.put((byte) message.getStatus().ordinal());
+        header.putInt(message.getId());
+        header.putInt((location == null) ? -1 : location[0]);
+        header.putInt((location == null) ? -1 : location[1]);
+
+        header.putShort((short) ((key == null) ? -1 : key.length));
+        if (key != null) header.put(key);
+
+        header.putInt((value == null) ? -1 : value.length);
+        header.flip();
+        return header;
+    }
+
+    /**
+     * @param size  size of the rest of a frame as read from its first bytes
+     * @throws IOException  when the size cannot be a frame
+     */
+    public static void checkSize(int size) throws IOException {
+        if (size < headerSize || size > maxFrameSize)
+            throw new IOException("Invalid frame size " + size);
+    }
+
+    /**
+     * @param body  a frame without its size
+     */
+    public static Message decode(ByteBuffer body) throws IOException {
+        try {
+            int status = body.get() & 0xff;
+            if (status >= statuses.length) throw new IOException("Invalid status " + status);
+
+            int id = body.getInt();
+            int x = body.getInt();
+            int y = body.getInt();
+
+            String key = null;
+            int keySize = body.getShort();
+            if (keySize >= 0) {
+                key = new String(body.array(), body.arrayOffset() + body.position(), keySize, StandardCharsets.UTF_8);
+                body.position(body.position() + keySize);
+            }
+
+            byte[] value = null;
+            int valueSize = body.getInt();
+            if (valueSize >= 0) {
+                value = new byte[valueSize];
+                body.get(value);
+            }
+
+            Message message = new Message(statuses[status], key, value);
+            if (x >= 0 && y >= 0) message.setLocation(x, y);
+            message.setId(id);
+            return message;
+        } catch (RuntimeException e) {
+            throw new IOException("Invalid frame " + e);
+        }
+    }
+}
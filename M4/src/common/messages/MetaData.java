@@ -6,7 +6,6 @@ import com.google.gson.reflect.TypeToken;
 import ecs.ECSNode;
 import ecs.IECSNode;
 
-import javax.xml.bind.DatatypeConverter;
 import java.lang.reflect.Type;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
@@ -51,7 +50,7 @@ public class MetaData implements IMetaData {
             md = MessageDigest.getInstance("MD5");
             md.update(key.getBytes());
             byte[] digest = md.digest();
-            String keyHashValue = DatatypeConverter.printHexBinary(digest).toUpperCase();
+            String keyHashValue = Hex.print(digest);
 
             for (IECSNode node : serverRepo) {
                 if (((ECSNode) node).contains(keyHashValue)) {
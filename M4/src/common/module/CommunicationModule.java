@@ -1,12 +1,20 @@
 package common.module;
 
+import com.google.gson.Gson;
+import common.messages.KVMessage;
+import common.messages.Message;
+import common.messages.MessageCodec;
 import org.apache.log4j.Logger;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
 
 public class CommunicationModule implements ICommunicationModule {
     private Logger logger = Logger.getRootLogger();
@@ -19,8 +27,24 @@ public class CommunicationModule implements ICommunicationModule {
 
     private static final int BUFFER_SIZE = 1024;
     private static final int DROP_SIZE = 1024 * BUFFER_SIZE;
-    private static final char LINE_FEED = 0x0A;
-    private static final char RETURN = 0x0D;
+    private static final int READ_SIZE = 16 * BUFFER_SIZE;
+    private static final byte LINE_FEED = 0x0A;
+    private static final byte RETURN = 0x0D;
+    private static final byte[] DELIMITER = new byte[]{LINE_FEED, RETURN};
+
+    // milliseconds to wait for the server to accept a connection
+    private static final int CONNECT_TIMEOUT = 5000;
+
+    // bytes read from the socket but not consumed yet, kept in read mode
+    private final ByteBuffer in = ByteBuffer.wrap(new byte[READ_SIZE], 0, 0);
+
+    // the message being received, reused between messages and shrunk after a large one
+    private byte[] message = new byte[BUFFER_SIZE];
+    private int length;
+
+    // messages go as binary frames instead of json lines once both ends agreed
+    private boolean binary;
+    private Gson gson = new Gson();
 
 
     public CommunicationModule(String address, int port) {
@@ -34,87 +58,150 @@ public class CommunicationModule implements ICommunicationModule {
 
     @Override
     public void sendMessage(String jsonBody) throws IOException {
-        byte[] ctrBytes = new byte[]{LINE_FEED, RETURN};
-        byte[] jsonBytes = jsonBody.getBytes();
-        byte[] msgBytes = new byte[jsonBytes.length + ctrBytes.length];
-        System.arraycopy(jsonBytes, 0, msgBytes, 0, jsonBytes.length);
-        System.arraycopy(ctrBytes, 0, msgBytes, jsonBytes.length, ctrBytes.length);
-        output.write(msgBytes, 0, msgBytes.length);
-        output.flush();
+        write(ByteBuffer.wrap(jsonBody.getBytes()), ByteBuffer.wrap(DELIMITER));
         logger.debug("Send message:\t '" + jsonBody + "'");
     }
 
     @Override
     public String receiveMessage() throws IOException {
+        length = 0;
+
+        while (true) {
+            if (!in.hasRemaining()) fill();
+
+            //scan what was read in one go for the carriage return
+            byte[] array = in.array();
+            int end = in.limit();
+            int i = in.position();
+            for (; i < end && array[i] != RETURN; i++) {
+                /* only keep printable characters, drop what comes after DROP_SIZE */
+                if (array[i] > 31 && array[i] < 127 && length < DROP_SIZE) {
+                    if (length == message.length) message = Arrays.copyOf(message, length * 2);
+                    message[length++] = array[i];
+                }
+            }
 
-        int index = 0;
-        byte[] msgBytes = null, tmp = null;
-        byte[] bufferBytes = new byte[BUFFER_SIZE];
+            if (i < end) {
+                in.position(i + 1);
+                break;
+            }
+            in.position(end);
+        }
 
-        /* read first char from stream */
-        byte read = (byte) input.read();
-        boolean reading = true;
+        String msg = new String(message, 0, length);
+        //idle connections should not keep the room of their largest message
+        if (message.length > READ_SIZE) message = new byte[BUFFER_SIZE];
+        logger.debug("Receive message:\t '" + msg + "'");
+        return msg;
+    }
 
+    @Override
+    public void sendKVMessage(KVMessage message) throws IOException {
+        if (!binary) {
+            sendMessage(gson.toJson(message));
+            return;
+        }
 
-        //	Check if stream is closed (read returns -1)
-		if (read == -1){
-			throw new IOException();
-		}
+        byte[] value = message.getValueBytes();
+        write(MessageCodec.header(message), ByteBuffer.wrap((value == null) ? new byte[0] : value));
+        logger.debug("Send frame:\t " + message.getStatus() + " " + message.getKey());
+    }
 
+    @Override
+    public KVMessage receiveKVMessage() throws IOException {
+        if (!binary)
+            return gson.fromJson(receiveMessage(), Message.class);
+
+        byte[] length = new byte[MessageCodec.lengthSize];
+        readFully(length);
+        int size = ByteBuffer.wrap(length).getInt();
+        MessageCodec.checkSize(size);
+
+        byte[] body = new byte[size];
+        readFully(body);
+        return MessageCodec.decode(ByteBuffer.wrap(body));
+    }
 
-        while(read != 13 && reading) {/* carriage return */
-        /* if buffer filled, copy to msg array */
-            if(index == BUFFER_SIZE) {
-                if(msgBytes == null){
-                    tmp = new byte[BUFFER_SIZE];
-                    System.arraycopy(bufferBytes, 0, tmp, 0, BUFFER_SIZE);
-                } else {
-                    tmp = new byte[msgBytes.length + BUFFER_SIZE];
-                    System.arraycopy(msgBytes, 0, tmp, 0, msgBytes.length);
-                    System.arraycopy(bufferBytes, 0, tmp, msgBytes.length,
-                            BUFFER_SIZE);
-                }
+    // one gathering write when the socket has a channel, else one copied write
+    private void write(ByteBuffer head, ByteBuffer body) throws IOException {
+        SocketChannel channel = socket.getChannel();
+        if (channel != null) {
+            ByteBuffer[] buffers = new ByteBuffer[]{head, body};
+            while (head.hasRemaining() || body.hasRemaining()) channel.write(buffers);
+            return;
+        }
 
-                msgBytes = tmp;
-                bufferBytes = new byte[BUFFER_SIZE];
-                index = 0;
-            }
+        byte[] bytes = new byte[head.remaining() + body.remaining()];
+        int size = head.remaining();
+        head.get(bytes, 0, size);
+        body.get(bytes, size, body.remaining());
+        output.write(bytes, 0, bytes.length);
+        output.flush();
+    }
 
-        /* only read valid characters, i.e. letters and numbers */
-            if((read > 31 && read < 127)) {
-                bufferBytes[index] = read;
-                index++;
-            }
+    // read as much as the socket has into the buffer, keeping unread bytes
+    private void fill() throws IOException {
+        in.compact();
+        int n = input.read(in.array(), in.position(), in.remaining());
+        if (n > 0) in.position(in.position() + n);
+        in.flip();
+        if (n < 0) throw new IOException("Connection closed");
+    }
 
-        /* stop reading is DROP_SIZE is reached */
-            if(msgBytes != null && msgBytes.length + index >= DROP_SIZE) {
-                reading = false;
+    private void readFully(byte[] bytes) throws IOException {
+        int read = Math.min(in.remaining(), bytes.length);
+        in.get(bytes, 0, read);
+
+        while (read < bytes.length) {
+            //large values go straight into their array
+            if (bytes.length - read >= in.capacity()) {
+                int n = input.read(bytes, read, bytes.length - read);
+                if (n < 0) throw new IOException("Connection closed");
+                read += n;
+            } else {
+                fill();
+                int n = Math.min(in.remaining(), bytes.length - read);
+                in.get(bytes, read, n);
+                read += n;
             }
-
-        /* read next char from stream */
-            read = (byte) input.read();
         }
+    }
 
-        if(msgBytes == null){
-            tmp = new byte[index];
-            System.arraycopy(bufferBytes, 0, tmp, 0, index);
-        } else {
-            tmp = new byte[msgBytes.length + index];
-            System.arraycopy(msgBytes, 0, tmp, 0, msgBytes.length);
-            System.arraycopy(bufferBytes, 0, tmp, msgBytes.length, index);
-        }
+    @Override
+    public boolean negotiateBinary() throws IOException {
+        sendKVMessage(new Message(KVMessage.StatusType.BINARY, "", ""));
+        KVMessage response = receiveKVMessage();
+
+        //older servers answer with an error and keep json
+        binary = response != null && response.getStatus() == KVMessage.StatusType.BINARY_SUCCESS;
+        logger.debug("Binary protocol " + (binary ? "agreed" : "refused"));
+        return binary;
+    }
 
-        msgBytes = tmp;
-        String msg = new String(msgBytes);
+    @Override
+    public void setBinary(boolean binary) {
+        this.binary = binary;
+    }
 
-        /* build final String */
-        logger.debug("Receive message:\t '" + msg + "'");
-        return msg;
+    @Override
+    public boolean isBinary() {
+        return binary;
     }
 
     @Override
     public void connect() throws UnknownHostException, IOException {
-        socket = new Socket(address, port);
+        InetSocketAddress remote = new InetSocketAddress(address, port);
+        if (remote.isUnresolved()) throw new UnknownHostException(address);
+
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.socket().setTcpNoDelay(true);
+            channel.socket().connect(remote, CONNECT_TIMEOUT);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        socket = channel.socket();
     }
 
     @Override
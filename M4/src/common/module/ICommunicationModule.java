@@ -1,5 +1,7 @@
 package common.module;
 
+import common.messages.KVMessage;
+
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -21,6 +23,33 @@ public interface ICommunicationModule {
      */
     public String receiveMessage() throws IOException;
 
+    /**
+     * Send a message as json or, once agreed, as a binary frame.
+     * @throws IOException some I/O error regarding the output stream
+     */
+    public void sendKVMessage(KVMessage message) throws IOException;
+
+    /**
+     * Receive a message as json or, once agreed, as a binary frame.
+     * @return received message, null for an empty json line
+     * @throws IOException Exception for receiving failures
+     */
+    public KVMessage receiveKVMessage() throws IOException;
+
+    /**
+     * Ask the server to switch to binary frames, client side.
+     * @return true if the server agreed, false if both ends keep json
+     * @throws IOException Exception for sending or receiving failures
+     */
+    public boolean negotiateBinary() throws IOException;
+
+    /**
+     * Switch between json and binary frames, server side after agreeing.
+     */
+    public void setBinary(boolean binary);
+
+    public boolean isBinary();
+
     /**
      * Establishes a connection to the KV Server.
      *
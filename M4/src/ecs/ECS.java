@@ -1,11 +1,11 @@
 package ecs;
 
 import app_kvECS.ECSClient;
+import common.messages.Hex;
 import common.messages.MetaData;
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 
-import javax.xml.bind.DatatypeConverter;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
@@ -15,7 +15,7 @@ import java.util.*;
 
 public class ECS {
     private static Logger logger = Logger.getRootLogger();
-    private static final String SCRIPT_TEXT = "ssh -n %s nohup java -jar ./m2-server.jar %s %s %s %s %s %s &";
+    private static final String SCRIPT_TEXT = "ssh -n %s nohup java -jar ./m2-server.jar %s %s %s %s %s %s %s %s %s &";
 
     private ECSWatcher zkWatch;
 
@@ -68,8 +68,12 @@ public class ECS {
                 MessageDigest md = MessageDigest.getInstance("MD5");
                 md.update(hashKey.getBytes());
                 byte[] digest = md.digest();
-                String endingHash = DatatypeConverter.printHexBinary(digest).toUpperCase();
+                String endingHash = Hex.print(digest);
                 node = new ECSNode(name, host, port, endingHash);
+                // optional 4th column selects the storage engine of the server
+                if (tokens.length > 3) node.setStorageStrategy(tokens[3]);
+                // optional 5th column selects how the server handles client connections
+                if (tokens.length > 4) node.setConnectionMode(tokens[4]);
                 avaServer.add(node);
             }
         } catch (FileNotFoundException e) {
@@ -103,7 +107,8 @@ public class ECS {
             ECSNode node = (ECSNode) iterator.next();
 
             String script = String.format(SCRIPT_TEXT, node.getNodeHost(), node.getNodeName(), zkHostname,
-                    zkPort, node.getNodePort(), node.getCacheStrategy(), node.getCachesize());
+                    zkPort, node.getNodePort(), node.getCacheStrategy(), node.getCachesize(), node.getStorageStrategy(), node.getCacheBytes(),
+                    node.getConnectionMode());
 
             Runtime run = Runtime.getRuntime();
             try {
@@ -190,6 +195,10 @@ public class ECS {
 
 
     public TreeSet<IECSNode> setupNewServers(int count, String cacheStrategy, int cacheSize) {
+        return setupNewServers(count, cacheStrategy, cacheSize, 0);
+    }
+
+    public TreeSet<IECSNode> setupNewServers(int count, String cacheStrategy, int cacheSize, long cacheBytes) {
 
         if (avaServer.size() < count) {
             logger.error("Do not have enough servers");
@@ -202,6 +211,7 @@ public class ECS {
         for (int i = 0; i < count; i++) {
             ECSNode node = (ECSNode) avaServer.pollFirst();
             node.setCachesize(cacheSize);
+            node.setCacheBytes(cacheBytes);
             node.setCacheStrategy(cacheStrategy);
             list.add(node);
             meta.addNode(node);
@@ -284,6 +294,7 @@ public class ECS {
         removeServers(list, false);
         detectors.remove(node.getNodeName());
 
-        client.addNodes(1, ((ECSNode) node).getCacheStrategy(), ((ECSNode) node).getCachesize());
+        client.addNodes(1, ((ECSNode) node).getCacheStrategy(), ((ECSNode) node).getCachesize(),
+                ((ECSNode) node).getCacheBytes());
     }
 }
@@ -10,6 +10,9 @@ public class ECSNode implements IECSNode, Comparable<ECSNode>{
     private String endingHashValue;
     private String cacheStrategy;
     private int cachesize;
+    private long cacheBytes;
+    private String storageStrategy = "BLOCK";
+    private String connectionMode = "THREAD";
     private int port;
 
     private int x;
@@ -73,6 +76,18 @@ public class ECSNode implements IECSNode, Comparable<ECSNode>{
         return cachesize;
     }
 
+    public long getCacheBytes() {
+        return cacheBytes;
+    }
+
+    public String getStorageStrategy() {
+        return storageStrategy;
+    }
+
+    public String getConnectionMode() {
+        return connectionMode;
+    }
+
     public void setName(String name) {
         this.name = name;
     }
@@ -101,6 +116,18 @@ public class ECSNode implements IECSNode, Comparable<ECSNode>{
         this.cachesize = cachesize;
     }
 
+    public void setCacheBytes(long cacheBytes) {
+        this.cacheBytes = cacheBytes;
+    }
+
+    public void setStorageStrategy(String storageStrategy) {
+        this.storageStrategy = storageStrategy;
+    }
+
+    public void setConnectionMode(String connectionMode) {
+        this.connectionMode = connectionMode;
+    }
+
     public boolean contains(String hashValue) {
         if ((startingHashValue.compareTo(endingHashValue) >= 0) &&
                 ((hashValue.compareTo(startingHashValue) >= 0) ||
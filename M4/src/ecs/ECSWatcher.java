@@ -253,6 +253,8 @@ public class ECSWatcher {
                 while(exists(CHILDREN_PATH + node.getNodeName(),null) != null &&
                         !deleteNode(CHILDREN_PATH + node.getNodeName())) {
                     deleteNode(CHILDREN_PATH + node.getNodeName() + "/server" + i);
+                    //invalidations of cached keys have their own node
+                    deleteNode(CHILDREN_PATH + node.getNodeName() + "/server" + i + "-inv");
                     i++;
                 }
             }
@@ -282,6 +284,8 @@ public class ECSWatcher {
                 while(exists(CHILDREN_PATH + node.getNodeName(),null) != null &&
                         !deleteNode(CHILDREN_PATH + node.getNodeName())) {
                     deleteNode(CHILDREN_PATH + node.getNodeName() + "/server" + i);
+                    //invalidations of cached keys have their own node
+                    deleteNode(CHILDREN_PATH + node.getNodeName() + "/server" + i + "-inv");
                     i++;
                 }
             }
@@ -27,6 +27,7 @@ public class AllTests {
         Suite.addTestSuite(ECSClientInteractionTest.class);
         Suite.addTestSuite(KVCacheTest.class);
         Suite.addTestSuite(KVServerTest.class);
+        Suite.addTestSuite(KVDBTest.class);
         Suite.addTestSuite(MetaDataTest.class);
         Suite.addTestSuite(ECSNodeTest.class);
         Suite.addTestSuite(PerformanceTest.class);
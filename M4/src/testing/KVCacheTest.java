@@ -1,7 +1,22 @@
 package testing;
 
+import app_kvServer.Cache.CacheLimits;
+import app_kvServer.Cache.CacheStats;
+import app_kvServer.Cache.KVCache;
+import app_kvServer.Cache.LFUCache;
+import app_kvServer.Cache.LRUCache;
+import app_kvServer.Cache.MissCache;
+import app_kvServer.Cache.OffHeapCache;
+import app_kvServer.Cache.RemoteCache;
+import app_kvServer.Cache.StripedCache;
+import app_kvServer.Cache.TinyLFUCache;
+import app_kvServer.IKVServer;
 import app_kvServer.KVServer;
 import client.KVStore;
+import com.google.gson.Gson;
+import common.messages.KVMessage;
+import common.messages.Message;
+import common.module.CommunicationModule;
 import common.module.ServerThread;
 import junit.framework.TestCase;
 import org.junit.After;
@@ -16,6 +31,7 @@ public class KVCacheTest extends TestCase {
 
     @After
     protected void tearDown() {
+        if (server == null) return;
         serverThread.interrupt();
         server.close();
 
@@ -151,5 +167,430 @@ public class KVCacheTest extends TestCase {
         assertNull(ex);
     }
 
+    @Test
+    public void testConcurrentAccess() {
+        Exception ex = null;
+
+        try {
+            assertEquals("Small cache should keep a single stripe", 1,
+                    new StripedCache(IKVServer.CacheStrategy.LRU, 5, 0, 16).getStripeCount());
+
+            for (final IKVServer.CacheStrategy strategy : new IKVServer.CacheStrategy[]{
+                    IKVServer.CacheStrategy.LRU, IKVServer.CacheStrategy.FIFO, IKVServer.CacheStrategy.LFU,
+                    IKVServer.CacheStrategy.TINYLFU, IKVServer.CacheStrategy.OFFHEAP}) {
+
+                final StripedCache cache = new StripedCache(strategy, 1000, 0, 16);
+                assertTrue("Large cache should be striped", cache.getStripeCount() > 1);
+
+                final Exception[] failure = new Exception[1];
+                Thread[] threads = new Thread[8];
+                for (int t = 0; t < threads.length; t++) {
+                    final int id = t;
+                    threads[t] = new Thread() {
+                        public void run() {
+                            try {
+                                for (int i = 0; i < 20000; i++) {
+                                    String key = "key-" + ((i * 31 + id) % 3000);
+                                    cache.putKV(key, key.getBytes());
+                                    byte[] value = cache.getKV(key);
+                                    if (value != null && !key.equals(new String(value)))
+                                        throw new IllegalStateException("Wrong value for " + key);
+                                    if (i % 1000 == 0) cache.putKV(key, null);
+                                }
+                            } catch (Exception e) {
+                                failure[0] = e;
+                            }
+                        }
+                    };
+                    threads[t].start();
+                }
+                for (Thread thread : threads) thread.join();
+
+                if (failure[0] != null) throw failure[0];
+
+                cache.putKV("last", "last".getBytes());
+                assertEquals(strategy + " lost the last value", "last", new String(cache.getKV("last")));
+            }
+        } catch (Exception e) {
+            ex = e;
+            System.out.println("Concurrent cache failed " + e);
+        }
+
+        assertNull(ex);
+    }
+
+    @Test
+    public void testLFUAging() {
+        Exception ex = null;
+
+        try {
+            LFUCache cache = new LFUCache(4);
+
+            // 1 put and 19 gets leave "old" with a count of 20
+            cache.putKV("old", "old".getBytes());
+            for (int i = 0; i < 19; i++) cache.getKV("old");
+            assertEquals("Wrong count before aging", 20, cache.getCount("old"));
+
+            // 32 accesses in total halve every count
+            for (int i = 1; i <= 3; i++) cache.putKV("new-" + i, "new".getBytes());
+            for (int i = 0; i < 9; i++) cache.getKV("new-1");
+            assertEquals("Counts were not halved", 10, cache.getCount("old"));
+            assertEquals("Counts were not halved", 5, cache.getCount("new-1"));
+            assertEquals("Counts below 2 should stay at 1", 1, cache.getCount("new-2"));
+
+            // least frequent and oldest goes first
+            cache.putKV("new-4", "new".getBytes());
+            assertEquals("LFU evicted the wrong key", 0, cache.getCount("new-2"));
+            assertEquals("LFU evicted the wrong key", 1, cache.getCount("new-3"));
+
+            // deleted keys leave no count behind
+            cache.putKV("old", null);
+            assertNull("Deleted key still cached", cache.getKV("old"));
+            assertEquals("Deleted key still counted", 0, cache.getCount("old"));
+        } catch (Exception e) {
+            ex = e;
+            System.out.println("LFU aging failed " + e);
+        }
+
+        assertNull(ex);
+    }
+
+    @Test
+    public void testLFUByteBound() {
+        Exception ex = null;
+
+        try {
+            // no entry bound, the aging period follows the cached entries
+            LFUCache cache = new LFUCache(0, 100);
 
-}
\ No newline at end of file
+            cache.putKV("old", "old".getBytes());
+            for (int i = 0; i < 19; i++) cache.getKV("old");
+            assertEquals("Counts aged on every access", 20, cache.getCount("old"));
+
+            // keys used once are evicted before the frequent one
+            for (int i = 0; i < 200; i++) {
+                cache.putKV("scan-" + i, "scan".getBytes());
+            }
+            assertTrue("Byte bound exceeded", cache.getBytes() <= 100);
+            assertNotNull("LFU evicted the frequent key", cache.getKV("old"));
+        } catch (Exception e) {
+            ex = e;
+            System.out.println("LFU byte bound failed " + e);
+        }
+
+        assertNull(ex);
+    }
+
+    @Test
+    public void testTinyLFU() {
+        Exception ex = null;
+
+        try {
+            TinyLFUCache cache = new TinyLFUCache(100);
+
+            for (int round = 0; round < 5; round++) {
+                for (int i = 0; i < 50; i++) {
+                    if (round == 0) cache.putKV("hot-" + i, "hot".getBytes());
+                    else cache.getKV("hot-" + i);
+                }
+            }
+
+            // a scan of keys read once must not push out the popular ones
+            for (int i = 0; i < 1000; i++) {
+                cache.putKV("scan-" + i, "scan".getBytes());
+            }
+
+            int kept = 0;
+            for (int i = 0; i < 50; i++) {
+                if (cache.inMain("hot-" + i)) kept++;
+            }
+            assertTrue("Scan evicted popular keys, kept " + kept, kept >= 45);
+
+            // a key read often enough is admitted over the popular ones
+            for (int i = 0; i < 20; i++) cache.getKV("late");
+            cache.putKV("late", "late".getBytes());
+            cache.putKV("push", "push".getBytes());
+            assertTrue("Popular new key not admitted", cache.inMain("late"));
+
+            cache.putKV("late", null);
+            assertNull("Deleted key still cached", cache.getKV("late"));
+        } catch (Exception e) {
+            ex = e;
+            System.out.println("TinyLFU failed " + e);
+        }
+
+        assertNull(ex);
+    }
+
+    @Test
+    public void testByteBound() {
+        Exception ex = null;
+
+        try {
+            assertEquals("Wrong byte count", 64L << 20, CacheLimits.parseBytes("64MB"));
+            assertEquals("Wrong byte count", 512, CacheLimits.parseBytes("512"));
+
+            for (IKVServer.CacheStrategy strategy : new IKVServer.CacheStrategy[]{
+                    IKVServer.CacheStrategy.LRU, IKVServer.CacheStrategy.FIFO, IKVServer.CacheStrategy.LFU,
+                    IKVServer.CacheStrategy.TINYLFU, IKVServer.CacheStrategy.OFFHEAP}) {
+
+                // bounded by bytes only, every entry weighs 8 + 92 bytes
+                KVCache cache = StripedCache.create(strategy, 0, 1000);
+                for (int i = 0; i < 100; i++) {
+                    cache.putKV(String.format("key-%04d", i), new byte[92]);
+                    assertTrue(strategy + " holds " + cache.getBytes() + " bytes", cache.getBytes() <= 1000);
+                }
+                assertTrue(strategy + " should be nearly full", cache.getBytes() >= 800);
+
+                // a value larger than the whole cache is not cached
+                cache.putKV("huge", new byte[2000]);
+                assertNull(strategy + " cached a value above its bound", cache.getKV("huge"));
+
+                // replacing a value with a larger one is weighed again
+                cache.putKV("key-0099", new byte[492]);
+                assertTrue(strategy + " holds " + cache.getBytes() + " bytes", cache.getBytes() <= 1000);
+
+                cache.clear();
+                assertEquals(strategy + " kept bytes after clear", 0, cache.getBytes());
+            }
+        } catch (Exception e) {
+            ex = e;
+            System.out.println("Byte bound failed " + e);
+        }
+
+        assertNull(ex);
+    }
+
+    @Test
+    public void testOffHeap() {
+        Exception ex = null;
+
+        try {
+            OffHeapCache cache = new OffHeapCache(0, 4 << 20);
+
+            // 100 KB values take 128 KB slots, 4 chunks hold 32 of them
+            byte[] large = new byte[100000];
+            for (int i = 0; i < 64; i++) {
+                large[0] = (byte) i;
+                cache.putKV("large-" + i, large);
+            }
+            assertEquals("Arena grew past its bound", 4 << 20, cache.getOffHeapBytes());
+            assertNull("Least recently used value not evicted", cache.getKV("large-0"));
+            byte[] value = cache.getKV("large-63");
+            assertEquals("Wrong value length", 100000, value.length);
+            assertEquals("Wrong value", 63, value[0]);
+
+            // small values take over the chunks freed by evictions
+            for (int i = 0; i < 20000; i++) {
+                cache.putKV("small-" + i, ("small-" + i).getBytes());
+            }
+            assertEquals("Arena grew past its bound", 4 << 20, cache.getOffHeapBytes());
+            assertEquals("Wrong small value", "small-19999", new String(cache.getKV("small-19999")));
+            assertNull("Large value should have been evicted", cache.getKV("large-63"));
+
+            // replacing and deleting free the old slot
+            cache.putKV("small-19999", "changed".getBytes());
+            assertEquals("Value not replaced", "changed", new String(cache.getKV("small-19999")));
+            cache.putKV("small-19999", null);
+            assertNull("Deleted value still cached", cache.getKV("small-19999"));
+
+            cache.clear();
+            assertEquals("Bytes left after clear", 0, cache.getBytes());
+            cache.putKV("after", "clear".getBytes());
+            assertEquals("Cache unusable after clear", "clear", new String(cache.getKV("after")));
+        } catch (Exception e) {
+            ex = e;
+            System.out.println("Off-heap cache failed " + e);
+        }
+
+        assertNull(ex);
+    }
+
+    @Test
+    public void testMissCache() {
+        Exception ex = null;
+
+        try {
+            MissCache misses = new MissCache(2, 200);
+
+            misses.addMiss("a");
+            assertTrue("Miss not remembered", misses.isMissing("a"));
+            assertFalse("Unknown key reported missing", misses.isMissing("b"));
+
+            // a write forgets the miss
+            misses.remove("a");
+            assertFalse("Miss kept after write", misses.isMissing("a"));
+
+            // the oldest miss goes first
+            misses.addMiss("a");
+            misses.addMiss("b");
+            misses.addMiss("c");
+            assertFalse("Bound not applied", misses.isMissing("a"));
+            assertTrue("Miss lost", misses.isMissing("c"));
+
+            // and every miss expires
+            Thread.sleep(300);
+            assertFalse("Miss did not expire", misses.isMissing("c"));
+        } catch (Exception e) {
+            ex = e;
+            System.out.println("Miss cache failed " + e);
+        }
+
+        assertNull(ex);
+    }
+
+    @Test
+    public void testRemoteCache() {
+        Exception ex = null;
+
+        try {
+            KVCache shared = new LRUCache(10);
+            RemoteCache remote = new RemoteCache(shared, 10, 200);
+
+            remote.putKV("key", "remote".getBytes());
+            assertEquals("Remote value lost", "remote", new String(remote.getKV("key")));
+            assertNull("Remote value visible as local", shared.getKV("key"));
+
+            // a local value of the same key is kept apart
+            shared.putKV("key", "local".getBytes());
+            assertEquals("Remote value overwritten", "remote", new String(remote.getKV("key")));
+
+            // the owner reports a write
+            remote.invalidate("key");
+            assertNull("Invalidated value still cached", remote.getKV("key"));
+            assertEquals("Local value dropped", "local", new String(shared.getKV("key")));
+
+            // misses are cached until the key is written
+            remote.putKV("missing", null);
+            assertTrue("Miss not cached", remote.isMissing("missing"));
+            remote.putKV("missing", "found".getBytes());
+            assertFalse("Miss kept after write", remote.isMissing("missing"));
+
+            // and everything expires
+            Thread.sleep(300);
+            assertNull("Remote value did not expire", remote.getKV("missing"));
+        } catch (Exception e) {
+            ex = e;
+            System.out.println("Remote cache failed " + e);
+        }
+
+        assertNull(ex);
+    }
+    @Test
+    public void testHotKeys() {
+        Exception ex = null;
+
+        try {
+            KVCache lru = new LRUCache(3);
+            lru.putKV("a", "1".getBytes());
+            lru.putKV("b", "2".getBytes());
+            lru.putKV("c", "3".getBytes());
+            lru.getKV("a");
+            assertEquals("Wrong LRU hot keys", "[a, c, b]", lru.hotKeys(3).toString());
+            assertEquals("Wrong number of hot keys", 2, lru.hotKeys(2).size());
+
+            // most frequent first
+            KVCache lfu = new LFUCache(3);
+            lfu.putKV("a", "1".getBytes());
+            lfu.putKV("b", "2".getBytes());
+            lfu.getKV("a");
+            lfu.getKV("a");
+            lfu.getKV("b");
+            assertEquals("Wrong LFU hot keys", "[a, b]", lfu.hotKeys(3).toString());
+
+            KVCache striped = new StripedCache(IKVServer.CacheStrategy.LRU, 1000, 0, 16);
+            for (int i = 0; i < 100; i++) striped.putKV("key" + i, "v".getBytes());
+            assertEquals("Wrong striped hot keys", 10, striped.hotKeys(10).size());
+            assertEquals("Striped hot keys lost", 100, striped.hotKeys(1000).size());
+        } catch (Exception e) {
+            ex = e;
+            System.out.println("Hot keys failed " + e);
+        }
+
+        assertNull(ex);
+    }
+
+    @Test
+    public void testWarmUp() {
+        Exception ex = null;
+
+        try {
+            server = new KVServer("warm", "", 0);
+            server.initKVServer(30003, 5, "LRU");
+            server.clearStorage();
+            serverThread = new ServerThread(server);
+            serverThread.start();
+
+            for (int i = 1; i <= 8; i++) {
+                server.putKV("warm-" + i, Integer.toString(i));
+            }
+            server.close();
+            serverThread.interrupt();
+
+            // the restarted server loads the keys that were cached on close
+            server = new KVServer("warm", "", 0);
+            server.initKVServer(30004, 5, "LRU");
+            serverThread = new ServerThread(server);
+            serverThread.start();
+
+            assertEquals("Hot keys not restored", "[warm-8, warm-7, warm-6, warm-5, warm-4]", server.hotKeys(5).toString());
+            for (int i = 1; i <= 3; i++) {
+                assertFalse("Cold key warmed warm-" + i, server.inCache("warm-" + i));
+            }
+        } catch (Exception e) {
+            ex = e;
+            System.out.println("Warm up failed " + e);
+        }
+
+        assertNull(ex);
+    }
+    @Test
+    public void testStats() {
+        Exception ex = null;
+
+        try {
+            KVCache lru = new LRUCache(2);
+            lru.putKV("a", "1".getBytes());
+            lru.putKV("b", "2".getBytes());
+            lru.putKV("c", "3".getBytes());
+            assertEquals("Wrong number of evictions", 1, lru.getEvictions());
+
+            server = new KVServer("stats", "", 0);
+            server.initKVServer(30005, 2, "LRU");
+            server.clearStorage();
+            serverThread = new ServerThread(server);
+            serverThread.start();
+
+            for (int i = 1; i <= 3; i++) {
+                server.putKV("stats-" + i, Integer.toString(i));
+            }
+            server.getKV("stats-3");
+            server.getKV("stats-1");
+            server.getKV("missing");
+
+            // the admin message reports the same counters
+            CommunicationModule cm = new CommunicationModule("localhost", 30005);
+            cm.connect();
+            cm.setStream();
+            cm.receiveMessage();
+            Gson gson = new Gson();
+            cm.sendMessage(gson.toJson(new Message(KVMessage.StatusType.STATS, "", "")));
+            KVMessage response = gson.fromJson(cm.receiveMessage(), Message.class);
+            cm.disconnect();
+
+            assertEquals("Wrong status", KVMessage.StatusType.STATS_SUCCESS, response.getStatus());
+            CacheStats.Report report = gson.fromJson(response.getValue(), CacheStats.Report.class);
+            assertEquals("Wrong strategy", "LRU", report.strategy);
+            assertEquals("Wrong hits", 1, report.hits);
+            assertEquals("Wrong misses", 2, report.misses);
+            assertEquals("Wrong loads", 1, report.loads);
+            assertEquals("Wrong evictions", 2, report.evictions);
+            assertTrue("Bytes not reported", report.bytes > 0);
+        } catch (Exception e) {
+            ex = e;
+            System.out.println("Stats failed " + e);
+        }
+
+        assertNull(ex);
+    }
+}
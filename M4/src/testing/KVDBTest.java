@@ -0,0 +1,475 @@
+package testing;
+
+import app_kvServer.IKVDB;
+import app_kvServer.KVDB;
+import app_kvServer.LogKVDB;
+import app_kvServer.Storage.KeyIndex;
+import app_kvServer.Storage.WriteAheadLog;
+import common.messages.Hex;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+public class KVDBTest extends TestCase {
+
+    private static final String[] FULL_RANGE = {"00000000000000000000000000000000", "00000000000000000000000000000000"};
+
+    private static void put(IKVDB db, String key, String value) throws Exception {
+        db.putKV(key, value == null ? null : value.getBytes());
+    }
+
+    private static String get(IKVDB db, String key) throws Exception {
+        byte[] value = db.getKV(key);
+        return value == null ? null : new String(value);
+    }
+
+    private void checkBasic(IKVDB db) throws Exception {
+        db.clear();
+
+        for (int i = 1; i <= 100; i++) {
+            put(db, "key-" + i, "value-" + i);
+        }
+        for (int i = 1; i <= 100; i++) {
+            assertEquals("Did not put correctly " + i, "value-" + i, get(db, "key-" + i));
+        }
+
+        // update
+        put(db, "key-1", "updated");
+        assertEquals("Did not update correctly", "updated", get(db, "key-1"));
+
+        // delete
+        put(db, "key-2", null);
+        assertNull("Did not delete correctly", get(db, "key-2"));
+        assertNull("Found key never put", get(db, "key-0"));
+
+        HashMap<String, byte[]> all = db.getRangeKV(FULL_RANGE);
+        assertEquals("Range did not return all keys", 99, all.size());
+        assertEquals("Range returned wrong value", "updated", new String(all.get("key-1")));
+    }
+
+    private void checkRange(IKVDB db) throws Exception {
+        db.clear();
+
+        for (int i = 0; i < 200; i++) {
+            put(db, "key-" + i, "value-" + i);
+        }
+
+        String[] lower = {"00000000000000000000000000000000", "80000000000000000000000000000000"};
+        String[] upper = {"80000000000000000000000000000000", "00000000000000000000000000000000"};
+
+        HashMap<String, byte[]> low = db.getRangeKV(lower);
+        HashMap<String, byte[]> high = db.getRangeKV(upper);
+        assertEquals("Ranges do not cover the ring", 200, low.size() + high.size());
+
+        MessageDigest md = MessageDigest.getInstance("MD5");
+        for (String key : low.keySet()) {
+            String hash = Hex.print(md.digest(key.getBytes()));
+            assertTrue("Key outside of range " + key, hash.compareTo(lower[1]) < 0);
+        }
+
+        db.removeRangeKV(upper);
+        assertEquals("Did not remove range", 0, db.getRangeKV(upper).size());
+        assertEquals("Removed keys outside of range", low.size(), db.getRangeKV(lower).size());
+        for (String key : high.keySet()) {
+            assertFalse("Removed key still in storage", db.contains(key));
+        }
+    }
+
+    @Test
+    public void testRange() {
+        Exception ex = null;
+        try {
+            KVDB db = new KVDB("kvdbtest-range");
+            checkRange(db);
+            db.close();
+
+            LogKVDB log = new LogKVDB("kvdbtest-range");
+            checkRange(log);
+            log.close();
+        } catch (Exception e) {
+            ex = e;
+            System.out.println("Range failed " + e);
+        }
+        assertNull(ex);
+    }
+
+    @Test
+    public void testBlockDB() {
+        Exception ex = null;
+        try {
+            KVDB db = new KVDB("kvdbtest-block");
+            checkBasic(db);
+            db.close();
+        } catch (Exception e) {
+            ex = e;
+            System.out.println("Block DB failed " + e);
+        }
+        assertNull(ex);
+    }
+
+    @Test
+    public void testMappedDB() {
+        Exception ex = null;
+        try {
+            KVDB db = new KVDB("kvdbtest-mmap", true);
+            checkBasic(db);
+            db.close();
+
+            // mapped and channel mode share the same file layout
+            db = new KVDB("kvdbtest-mmap");
+            assertEquals("Channel mode cannot read mapped write", "updated", get(db, "key-1"));
+            assertNull("Channel mode found deleted key", get(db, "key-2"));
+            db.close();
+        } catch (Exception e) {
+            ex = e;
+            System.out.println("Mapped DB failed " + e);
+        }
+        assertNull(ex);
+    }
+
+    @Test
+    public void testSizeClasses() {
+        Exception ex = null;
+        try {
+            KVDB db = new KVDB("kvdbtest-slab");
+            db.clear();
+
+            StringBuilder large = new StringBuilder();
+            while (large.length() < 20000) large.append("large-value-");
+
+            // 64 slots per file in the 64KB class
+            for (int i = 1; i <= 70; i++) {
+                put(db, "key-" + i, large.toString() + i);
+            }
+            put(db, "small", "v");
+
+            int[] counts = db.getFileCounts();
+            assertEquals("Small value not in smallest class", 1, counts[0]);
+            assertEquals("Did not add a file to a full class", 2, counts[5]);
+            assertEquals("Used the block class", 0, counts[6]);
+
+            // move between classes in both directions
+            put(db, "key-1", "short");
+            put(db, "small", large.toString());
+            assertEquals("Lost value moved to smaller class", "short", get(db, "key-1"));
+            assertEquals("Lost value moved to larger class", large.toString(), get(db, "small"));
+            db.close();
+
+            db = new KVDB("kvdbtest-slab");
+            assertEquals("Lost value after reopen", "short", get(db, "key-1"));
+            assertEquals("Lost value after reopen", large.toString(), get(db, "small"));
+            for (int i = 2; i <= 70; i++) {
+                assertEquals("Lost value after reopen " + i, large.toString() + i, get(db, "key-" + i));
+            }
+            assertEquals("Range did not return all keys", 71, db.getRangeKV(FULL_RANGE).size());
+
+            // freed slots are reused before the class grows
+            put(db, "key-2", null);
+            put(db, "key-71", large.toString());
+            assertEquals("Did not reuse freed slot", 2, db.getFileCounts()[5]);
+
+            db.clear();
+            db.close();
+        } catch (Exception e) {
+            ex = e;
+            System.out.println("Size classes failed " + e);
+        }
+        assertNull(ex);
+    }
+
+    @Test
+    public void testGrowth() {
+        Exception ex = null;
+        try {
+            // the index rehashes into a doubled table at the load factor
+            KeyIndex index = new KeyIndex(16, 0.5);
+            assertEquals("Wrong initial capacity", 32, index.capacity());
+            for (int i = 0; i < 20000; i++) {
+                index.put("key-" + i, i);
+            }
+            assertEquals("Did not grow at the load factor", 65536, index.capacity());
+            for (int i = 0; i < 20000; i += 2) {
+                index.remove("key-" + i);
+            }
+            for (int i = 0; i < 20000; i++) {
+                assertEquals("Lost key in rehash " + i, (i % 2 == 0) ? -1 : i, index.get("key-" + i));
+            }
+
+            KVDB db = new KVDB("kvdbtest-grow", false, false, 0.5);
+            db.clear();
+            for (int i = 1; i <= 3000; i++) {
+                put(db, "key-" + i, "value-" + i);
+                assertEquals("Lost key while growing " + i, "value-" + i, get(db, "key-" + i));
+            }
+            db.close();
+
+            // the index is rebuilt at any load factor
+            db = new KVDB("kvdbtest-grow", false, false, 0.9);
+            for (int i = 1; i <= 3000; i++) {
+                assertEquals("Lost key after reopen " + i, "value-" + i, get(db, "key-" + i));
+            }
+            db.clear();
+            db.close();
+        } catch (Exception e) {
+            ex = e;
+            System.out.println("Growth failed " + e);
+        }
+        assertNull(ex);
+    }
+
+    @Test
+    public void testCompaction() {
+        Exception ex = null;
+        try {
+            KVDB db = new KVDB("kvdbtest-pack");
+            db.clear();
+
+            StringBuilder large = new StringBuilder();
+            while (large.length() < 20000) large.append("large-value-");
+
+            // 64 slots per file in the 64KB class
+            for (int i = 1; i <= 130; i++) {
+                put(db, "key-" + i, large.toString() + i);
+            }
+            assertEquals("Did not fill three files", 3, db.getFileCounts()[5]);
+
+            // free the low slots, the highest ones stay in use
+            for (int i = 1; i <= 100; i++) {
+                put(db, "key-" + i, null);
+            }
+            db.compact();
+            assertEquals("Did not delete emptied files", 1, db.getFileCounts()[5]);
+
+            for (int i = 101; i <= 130; i++) {
+                assertEquals("Lost moved value " + i, large.toString() + i, get(db, "key-" + i));
+            }
+            put(db, "key-1", "after");
+            db.close();
+
+            db = new KVDB("kvdbtest-pack");
+            assertEquals("Loaded more files than needed", 1, db.getFileCounts()[5]);
+            assertEquals("Range did not return all keys", 31, db.getRangeKV(FULL_RANGE).size());
+            for (int i = 101; i <= 130; i++) {
+                assertEquals("Lost moved value after reopen " + i, large.toString() + i, get(db, "key-" + i));
+            }
+            db.clear();
+            db.close();
+        } catch (Exception e) {
+            ex = e;
+            System.out.println("Compaction failed " + e);
+        }
+        assertNull(ex);
+    }
+
+    @Test
+    public void testRecovery() {
+        Exception ex = null;
+        try {
+            KVDB db = new KVDB("kvdbtest-wal");
+            db.clear();
+            put(db, "key-1", "old");
+            put(db, "key-2", "value-2");
+            db.close();
+
+            // writes logged before a crash, followed by a torn record
+            WriteAheadLog wal = new WriteAheadLog(new File("KVDB/kvdbtest-wal/wal"));
+            ArrayList<WriteAheadLog.Record> records = new ArrayList<>();
+            records.add(new WriteAheadLog.Record("key-1", "new".getBytes()));
+            records.add(new WriteAheadLog.Record("key-2", null));
+            records.add(new WriteAheadLog.Record("key-3", "value-3".getBytes()));
+            wal.append(records);
+            wal.sync();
+            wal.close();
+
+            // garbage sizes must end the log, not overflow the allocation
+            RandomAccessFile file = new RandomAccessFile("KVDB/kvdbtest-wal/wal", "rw");
+            file.seek(file.length());
+            file.writeInt(0);
+            file.writeInt(5);
+            file.writeInt(Integer.MAX_VALUE);
+            file.write(new byte[]{1, 2, 3, 4, 5, 6, 7});
+            file.close();
+
+            db = new KVDB("kvdbtest-wal");
+            assertEquals("Did not replay update", "new", get(db, "key-1"));
+            assertNull("Did not replay delete", get(db, "key-2"));
+            assertEquals("Did not replay put", "value-3", get(db, "key-3"));
+            assertEquals("Did not checkpoint log", 0, new File("KVDB/kvdbtest-wal/wal").length());
+            db.clear();
+            db.close();
+        } catch (Exception e) {
+            ex = e;
+            System.out.println("Recovery failed " + e);
+        }
+        assertNull(ex);
+    }
+
+    @Test
+    public void testGroupCommit() {
+        Exception ex = null;
+        try {
+            final KVDB db = new KVDB("kvdbtest-group");
+            db.clear();
+
+            final Exception[] failed = new Exception[1];
+            Thread[] threads = new Thread[8];
+            for (int t = 0; t < threads.length; t++) {
+                final int id = t;
+                threads[t] = new Thread() {
+                    public void run() {
+                        try {
+                            for (int i = 0; i < 50; i++) {
+                                put(db, "key-" + id + "-" + i, "value-" + id + "-" + i);
+                            }
+                        } catch (Exception e) {
+                            failed[0] = e;
+                        }
+                    }
+                };
+                threads[t].start();
+            }
+            for (Thread thread : threads) thread.join();
+            assertNull(failed[0]);
+
+            for (int t = 0; t < threads.length; t++) {
+                for (int i = 0; i < 50; i++) {
+                    assertEquals("Lost concurrent put", "value-" + t + "-" + i, get(db, "key-" + t + "-" + i));
+                }
+            }
+            db.clear();
+            db.close();
+        } catch (Exception e) {
+            ex = e;
+            System.out.println("Group commit failed " + e);
+        }
+        assertNull(ex);
+    }
+
+    @Test
+    public void testWriteBehind() {
+        Exception ex = null;
+        try {
+            KVDB db = new KVDB("kvdbtest-behind", false, true);
+            checkBasic(db);
+            checkRange(db);
+            db.clear();
+
+            // rewrites of a key wait as one dirty write
+            for (int i = 0; i < 100; i++) {
+                put(db, "counter", "value-" + i);
+            }
+            put(db, "gone", "value");
+            put(db, "gone", null);
+            assertTrue("Rewrites not coalesced", db.getDirtyCount() <= 2);
+            assertEquals("Dirty write not visible", "value-99", get(db, "counter"));
+            assertFalse("Dirty delete not visible", db.contains("gone"));
+
+            db.flush();
+            assertEquals("Flush left dirty writes", 0, db.getDirtyCount());
+            assertEquals("Flush lost a write", "value-99", get(db, "counter"));
+            put(db, "counter", "last");
+            db.close();
+
+            // close applies what is left, the block files are complete without write-behind
+            db = new KVDB("kvdbtest-behind");
+            assertEquals("Close lost a dirty write", "last", get(db, "counter"));
+            assertNull("Close lost a dirty delete", get(db, "gone"));
+            db.clear();
+            db.close();
+        } catch (Exception e) {
+            ex = e;
+            System.out.println("Write-behind failed " + e);
+        }
+        assertNull(ex);
+    }
+
+    @Test
+    public void testLogDB() {
+        Exception ex = null;
+        try {
+            LogKVDB db = new LogKVDB("kvdbtest-log");
+            checkBasic(db);
+            db.close();
+
+            // index is rebuilt from the segments
+            db = new LogKVDB("kvdbtest-log");
+            assertEquals("Did not recover update", "updated", get(db, "key-1"));
+            assertNull("Did not recover delete", get(db, "key-2"));
+            assertEquals("Did not recover value", "value-100", get(db, "key-100"));
+            db.close();
+        } catch (Exception e) {
+            ex = e;
+            System.out.println("Log DB failed " + e);
+        }
+        assertNull(ex);
+    }
+
+    @Test
+    public void testLogCompaction() {
+        Exception ex = null;
+        try {
+            LogKVDB db = new LogKVDB("kvdbtest-compact", 4096);
+            db.clear();
+
+            // overwrite the same keys so old segments become garbage
+            for (int round = 0; round < 100; round++) {
+                for (int i = 0; i < 10; i++) {
+                    put(db, "key-" + i, "value-" + round + "-" + i);
+                }
+            }
+            put(db, "key-0", null);
+            db.compact();
+
+            File[] segments = new File("KVLOG/kvdbtest-compact").listFiles();
+            assertTrue("Did not compact segments " + segments.length, segments.length <= 3);
+
+            for (int i = 1; i < 10; i++) {
+                assertEquals("Lost value in compaction", "value-99-" + i, get(db, "key-" + i));
+            }
+            assertNull("Delete lost in compaction", get(db, "key-0"));
+            db.close();
+
+            db = new LogKVDB("kvdbtest-compact", 4096);
+            assertEquals("Lost value after reopen", "value-99-9", get(db, "key-9"));
+            assertNull("Delete lost after reopen", get(db, "key-0"));
+            db.close();
+        } catch (Exception e) {
+            ex = e;
+            System.out.println("Log compaction failed " + e);
+        }
+        assertNull(ex);
+    }
+
+    @Test
+    public void testLogLargeValue() {
+        Exception ex = null;
+        try {
+            LogKVDB db = new LogKVDB("kvdbtest-large", 4096);
+            db.clear();
+
+            // a value larger than a segment gets a segment of its own
+            byte[] large = new byte[10000];
+            Arrays.fill(large, (byte) 'l');
+            put(db, "key-0", "small");
+            db.putKV("key-1", large);
+            put(db, "key-2", "after");
+            db.close();
+
+            db = new LogKVDB("kvdbtest-large", 4096);
+            assertTrue("Lost large value", Arrays.equals(large, db.getKV("key-1")));
+            assertEquals("Lost value before", "small", get(db, "key-0"));
+            assertEquals("Lost value after", "after", get(db, "key-2"));
+            db.close();
+        } catch (Exception e) {
+            ex = e;
+            System.out.println("Log large value failed " + e);
+        }
+        assertNull(ex);
+    }
+}
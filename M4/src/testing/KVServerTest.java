@@ -2,10 +2,29 @@ package testing;
 
 import app_kvServer.IKVServer.CacheStrategy;
 import app_kvServer.KVServer;
+import app_kvServer.ReaderLeases;
+import client.KVStore;
+import com.google.gson.Gson;
+import common.messages.KVMessage;
+import common.messages.Message;
+import common.messages.MessageCodec;
+import common.messages.MetaData;
+import common.module.CommunicationModule;
 import common.module.ServerThread;
+import ecs.ECSNode;
+import ecs.IECSNode;
 import junit.framework.TestCase;
 import org.junit.*;
 
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.TreeSet;
+
 
 public class KVServerTest extends TestCase {
 
@@ -110,4 +129,406 @@ public class KVServerTest extends TestCase {
         }
         assertNull(ex);
     }
+
+    @Test
+    public void testBinaryValue() {
+        Exception ex = null;
+        try {
+            byte[] value = new byte[256];
+            for (int i = 0; i < value.length; i++) value[i] = (byte) i;
+
+            kvServer.putKVBytes("binary", value);
+            assertTrue("Binary value changed in cache", Arrays.equals(value, kvServer.getKVBytes("binary")));
+            kvServer.clearCache();
+            assertTrue("Binary value changed in storage", Arrays.equals(value, kvServer.getKVBytes("binary")));
+
+            // json of the message only holds printable characters
+            Gson gson = new Gson();
+            String json = gson.toJson(new Message(KVMessage.StatusType.GET_SUCCESS, "binary", value));
+            for (char c : json.toCharArray()) {
+                assertTrue("Unprintable character in message", c > 31 && c < 127);
+            }
+            KVMessage message = gson.fromJson(json, Message.class);
+            assertTrue("Binary value changed in message", Arrays.equals(value, message.getValueBytes()));
+
+            // text values still travel as text
+            message = new Message(KVMessage.StatusType.PUT, "text", "plain".getBytes());
+            assertEquals("Text value changed", "plain", message.getValue());
+            message = gson.fromJson(gson.toJson(message), Message.class);
+            assertEquals("Text value not sent as text", "plain", ((Message) message).value);
+            assertNull("Text value sent as base64", ((Message) message).data);
+        } catch (Exception e) {
+            ex = e;
+            System.out.println("testBinaryValue failed " + e);
+        }
+        assertNull(ex);
+    }
+
+    @Test
+    public void testReaderLeases() {
+        Exception ex = null;
+        try {
+            ReaderLeases leases = new ReaderLeases(200);
+
+            leases.add("key", "server1");
+            leases.add("key", "server2");
+            ArrayList<String> readers = leases.take("key");
+            assertEquals("Wrong number of readers", 2, readers.size());
+            assertTrue("Reader lost", readers.contains("server1") && readers.contains("server2"));
+
+            // a write hands the readers out once
+            assertTrue("Readers kept after take", leases.take("key").isEmpty());
+
+            // expired leases need no invalidation and are dropped
+            leases.add("old", "server1");
+            Thread.sleep(300);
+            assertTrue("Expired lease handed out", leases.take("old").isEmpty());
+            leases.add("a", "server1");
+            Thread.sleep(300);
+            leases.add("b", "server1");
+            assertEquals("Expired leases kept", 1, leases.size());
+        } catch (Exception e) {
+            ex = e;
+            System.out.println("testReaderLeases failed " + e);
+        }
+        assertNull(ex);
+    }
+    // send a STATS request and return the status of the answer
+    private KVMessage.StatusType stats(CommunicationModule cm) throws Exception {
+        Gson gson = new Gson();
+        cm.sendMessage(gson.toJson(new Message(KVMessage.StatusType.STATS, "", "")));
+        return gson.fromJson(cm.receiveMessage(), Message.class).getStatus();
+    }
+
+    // wait for the server to notice closed connections
+    private void awaitConnections(KVServer server, int count) throws Exception {
+        for (int i = 0; i < 100 && server.getConnectionCount() != count; i++) {
+            Thread.sleep(20);
+        }
+        assertEquals("Wrong number of connections", count, server.getConnectionCount());
+    }
+
+    @Test
+    public void testConnectionCleanup() {
+        Exception ex = null;
+        try {
+            CommunicationModule cm = new CommunicationModule("localhost", KVSERVER_PORT);
+            cm.connect();
+            cm.setStream();
+            cm.receiveMessage();
+            awaitConnections(kvServer, 1);
+
+            // finished connections leave the list
+            cm.disconnect();
+            awaitConnections(kvServer, 0);
+        } catch (Exception e) {
+            ex = e;
+            System.out.println("testConnectionCleanup failed " + e);
+        }
+        assertNull(ex);
+    }
+
+    @Test
+    public void testNioServer() {
+        Exception ex = null;
+        KVServer server = new KVServer("nioserver", "", 0);
+        ServerThread nioThread = null;
+        try {
+            server.initKVServer(50010, CACHE_SIZE, CACHE_STRATEGY, "BLOCK", 0, "NIO");
+            nioThread = new ServerThread(server);
+            nioThread.start();
+
+            ArrayList<CommunicationModule> clients = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                CommunicationModule cm = new CommunicationModule("localhost", 50010);
+                cm.connect();
+                cm.setStream();
+                assertTrue("No greeting", cm.receiveMessage().startsWith("Connection to KVServer nioserver"));
+                clients.add(cm);
+            }
+            for (CommunicationModule cm : clients) {
+                assertEquals("Wrong answer", KVMessage.StatusType.STATS_SUCCESS, stats(cm));
+            }
+            awaitConnections(server, 20);
+
+            // a request split over several packets and two requests in one
+            CommunicationModule cm = clients.get(0);
+            String request = new Gson().toJson(new Message(KVMessage.StatusType.STATS, "", "")) + "\n\r";
+            OutputStream out = cm.getOutputStream();
+            out.write(request.substring(0, 5).getBytes());
+            out.flush();
+            Thread.sleep(50);
+            out.write((request.substring(5) + request).getBytes());
+            out.flush();
+            Gson gson = new Gson();
+            for (int i = 0; i < 2; i++) {
+                assertEquals("Wrong framing", KVMessage.StatusType.STATS_SUCCESS,
+                        gson.fromJson(cm.receiveMessage(), Message.class).getStatus());
+            }
+
+            // answered in order, ids still come back
+            checkPipelined(clients.get(1), 300);
+
+            for (CommunicationModule client : clients) {
+                client.disconnect();
+            }
+            awaitConnections(server, 0);
+        } catch (Exception e) {
+            ex = e;
+            System.out.println("testNioServer failed " + e);
+        } finally {
+            if (nioThread != null) nioThread.interrupt();
+            server.close();
+        }
+        assertNull(ex);
+    }
+    @Test
+    public void testVirtualThreads() {
+        Exception ex = null;
+        KVServer server = new KVServer("virtualserver", "", 0);
+        ServerThread virtualThread = null;
+        try {
+            // clients get platform threads on JVMs without virtual threads
+            server.initKVServer(50011, CACHE_SIZE, CACHE_STRATEGY, "BLOCK", 0, "VIRTUAL");
+            virtualThread = new ServerThread(server);
+            virtualThread.start();
+
+            ArrayList<CommunicationModule> clients = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                CommunicationModule cm = new CommunicationModule("localhost", 50011);
+                cm.connect();
+                cm.setStream();
+                cm.receiveMessage();
+                clients.add(cm);
+            }
+            for (CommunicationModule cm : clients) {
+                assertEquals("Wrong answer", KVMessage.StatusType.STATS_SUCCESS, stats(cm));
+            }
+            awaitConnections(server, 20);
+            checkPipelined(clients.get(0), 300);
+
+            for (CommunicationModule client : clients) {
+                client.disconnect();
+            }
+            awaitConnections(server, 0);
+        } catch (Exception e) {
+            ex = e;
+            System.out.println("testVirtualThreads failed " + e);
+        } finally {
+            if (virtualThread != null) virtualThread.interrupt();
+            server.close();
+        }
+        assertNull(ex);
+    }
+    @Test
+    public void testLargeMessages() {
+        Exception ex = null;
+        try {
+            CommunicationModule cm = new CommunicationModule("localhost", KVSERVER_PORT);
+            cm.connect();
+            cm.setStream();
+            cm.receiveMessage();
+
+            // 100 KB value, longer than one read of the socket
+            char[] chars = new char[100 * 1024];
+            Arrays.fill(chars, 'v');
+            cm.sendKVMessage(new Message(KVMessage.StatusType.PUT, "big", new String(chars)));
+            assertEquals("Wrong answer", KVMessage.StatusType.SERVER_STOPPED, cm.receiveKVMessage().getStatus());
+
+            // both answers may arrive in one read
+            String request = new Gson().toJson(new Message(KVMessage.StatusType.STATS, "", "")) + "\n\r";
+            OutputStream out = cm.getOutputStream();
+            out.write((request + request).getBytes());
+            out.flush();
+            for (int i = 0; i < 2; i++) {
+                assertEquals("Wrong framing", KVMessage.StatusType.STATS_SUCCESS, cm.receiveKVMessage().getStatus());
+            }
+
+            assertTrue("Binary protocol refused", cm.negotiateBinary());
+            cm.sendKVMessage(new Message(KVMessage.StatusType.PUT, "big", new byte[100 * 1024]));
+            assertEquals("Wrong answer", KVMessage.StatusType.SERVER_STOPPED, cm.receiveKVMessage().getStatus());
+            cm.sendKVMessage(new Message(KVMessage.StatusType.STATS, "", ""));
+            assertEquals("Wrong answer", KVMessage.StatusType.STATS_SUCCESS, cm.receiveKVMessage().getStatus());
+
+            cm.disconnect();
+        } catch (Exception e) {
+            ex = e;
+            System.out.println("testLargeMessages failed " + e);
+        }
+        assertNull(ex);
+    }
+
+    // send requests with ids without waiting, every id must come back once
+    private void checkPipelined(CommunicationModule cm, int count) throws Exception {
+        for (int id = 1; id <= count; id++) {
+            Message request = new Message(KVMessage.StatusType.STATS, "", "");
+            request.setId(id);
+            cm.sendKVMessage(request);
+        }
+
+        HashSet<Integer> ids = new HashSet<>();
+        for (int i = 0; i < count; i++) {
+            KVMessage response = cm.receiveKVMessage();
+            assertEquals("Wrong answer", KVMessage.StatusType.STATS_SUCCESS, response.getStatus());
+            assertTrue("Duplicate or unknown id " + response.getId(), response.getId() > 0
+                    && response.getId() <= count && ids.add(response.getId()));
+        }
+    }
+
+    @Test
+    public void testPipelining() {
+        Exception ex = null;
+        KVStore store = null;
+        try {
+            CommunicationModule cm = new CommunicationModule("localhost", KVSERVER_PORT);
+            cm.connect();
+            cm.setStream();
+            cm.receiveMessage();
+
+            // more requests than the server answers at once
+            checkPipelined(cm, 300);
+            assertTrue("Binary protocol refused", cm.negotiateBinary());
+            checkPipelined(cm, 300);
+
+            // requests without id are still answered in order
+            cm.sendKVMessage(new Message(KVMessage.StatusType.STATS, "", ""));
+            assertEquals("Wrong id", 0, cm.receiveKVMessage().getId());
+            cm.disconnect();
+
+            store = new KVStore("localhost", KVSERVER_PORT);
+            store.connect();
+            ArrayList<String> keys = new ArrayList<>();
+            LinkedHashMap<String, byte[]> pairs = new LinkedHashMap<>();
+            for (int i = 0; i < 200; i++) {
+                keys.add("key" + i);
+                pairs.put("key" + i, ("value" + i).getBytes());
+            }
+
+            // the server is stopped until the ECS starts it
+            List<KVMessage> responses = store.putAll(pairs);
+            assertEquals("Wrong number of responses", 200, responses.size());
+            for (KVMessage response : responses) {
+                assertEquals("Wrong answer", KVMessage.StatusType.SERVER_STOPPED, response.getStatus());
+            }
+            responses = store.getAll(keys);
+            assertEquals("Wrong number of responses", 200, responses.size());
+            for (KVMessage response : responses) {
+                assertEquals("Wrong answer", KVMessage.StatusType.SERVER_STOPPED, response.getStatus());
+            }
+        } catch (Exception e) {
+            ex = e;
+            System.out.println("testPipelining failed " + e);
+        } finally {
+            if (store != null) store.disconnect();
+        }
+        assertNull(ex);
+    }
+
+    @Test
+    public void testPipelinedWrites() {
+        Exception ex = null;
+        try {
+            // the only server of the ring is responsible for every key
+            TreeSet<IECSNode> nodes = new TreeSet<>();
+            nodes.add(new ECSNode(KVSERVER_NAME, "localhost", KVSERVER_PORT, "00000000000000000000000000000000"));
+            kvServer.setMetaData(new MetaData(nodes));
+            kvServer.start();
+
+            CommunicationModule cm = new CommunicationModule("localhost", KVSERVER_PORT);
+            cm.connect();
+            cm.setStream();
+            cm.receiveMessage();
+
+            // writes to one key mixed with writes to others, the last one must win
+            int count = 300;
+            for (int id = 1; id <= count; id++) {
+                Message request = new Message(KVMessage.StatusType.PUT, (id % 3 == 0) ? "other" + id : "key", "value" + id);
+                request.setLocation(1, 2);
+                request.setId(id);
+                cm.sendKVMessage(request);
+            }
+            for (int i = 0; i < count; i++) {
+                KVMessage response = cm.receiveKVMessage();
+                assertTrue("Wrong answer " + response.getStatus(), response.getStatus() == KVMessage.StatusType.PUT_SUCCESS
+                        || response.getStatus() == KVMessage.StatusType.PUT_UPDATE);
+            }
+
+            Message get = new Message(KVMessage.StatusType.GET, "key", "");
+            get.setLocation(1, 2);
+            cm.sendKVMessage(get);
+            assertEquals("Wrong value", "value" + (count - 1), cm.receiveKVMessage().getValue());
+            assertEquals("Wrong value", "value" + (count - 1), kvServer.getKV("key"));
+            cm.disconnect();
+        } catch (Exception e) {
+            ex = e;
+            System.out.println("testPipelinedWrites failed " + e);
+        }
+        assertNull(ex);
+    }
+
+    // negotiate binary frames and check a few requests in both connection modes
+    private void checkBinary(int port) throws Exception {
+        CommunicationModule cm = new CommunicationModule("localhost", port);
+        cm.connect();
+        cm.setStream();
+        cm.receiveMessage();
+        assertTrue("Binary protocol refused", cm.negotiateBinary());
+
+        cm.sendKVMessage(new Message(KVMessage.StatusType.STATS, "", ""));
+        assertEquals("Wrong answer", KVMessage.StatusType.STATS_SUCCESS, cm.receiveKVMessage().getStatus());
+
+        // the server is stopped until the ECS starts it
+        Message put = new Message(KVMessage.StatusType.PUT, "key", new byte[]{0, 13, 10, (byte) 0xff});
+        put.setLocation(1, 2);
+        cm.sendKVMessage(put);
+        assertEquals("Wrong answer", KVMessage.StatusType.SERVER_STOPPED, cm.receiveKVMessage().getStatus());
+
+        cm.disconnect();
+    }
+
+    @Test
+    public void testBinaryProtocol() {
+        Exception ex = null;
+        KVServer server = new KVServer("binaryserver", "", 0);
+        ServerThread nioThread = null;
+        try {
+            Message message = new Message(KVMessage.StatusType.PUT, "key", new byte[]{0, 13, 10, (byte) 0xff});
+            message.setLocation(3, 4);
+            message.setId(7);
+            byte[] frame = MessageCodec.encode(message);
+            assertEquals("Wrong frame size", frame.length - MessageCodec.lengthSize, ByteBuffer.wrap(frame).getInt());
+
+            Message decoded = MessageCodec.decode(ByteBuffer.wrap(frame, MessageCodec.lengthSize, frame.length - MessageCodec.lengthSize));
+            assertEquals("Wrong status", KVMessage.StatusType.PUT, decoded.getStatus());
+            assertEquals("Wrong key", "key", decoded.getKey());
+            assertTrue("Wrong value", Arrays.equals(message.getValueBytes(), decoded.getValueBytes()));
+            assertEquals("Wrong location", 4, decoded.getLocation()[1]);
+            assertEquals("Wrong id", 7, decoded.getId());
+
+            // frames never base64 the value, json still does
+            assertNull("Value encoded for a frame", decoded.data);
+            Message json = new Gson().fromJson(new Gson().toJson(decoded), Message.class);
+            assertNotNull("Value not in json", json.data);
+            assertTrue("Wrong json value", Arrays.equals(message.getValueBytes(), json.getValueBytes()));
+
+            decoded = MessageCodec.decode(ByteBuffer.wrap(MessageCodec.encode(new Message(KVMessage.StatusType.GET, null, (byte[]) null)), 4, 19));
+            assertNull("Key appeared", decoded.getKey());
+            assertNull("Value appeared", decoded.getValueBytes());
+            assertNull("Location appeared", decoded.getLocation());
+
+            checkBinary(KVSERVER_PORT);
+
+            server.initKVServer(50012, CACHE_SIZE, CACHE_STRATEGY, "BLOCK", 0, "NIO");
+            nioThread = new ServerThread(server);
+            nioThread.start();
+            checkBinary(50012);
+        } catch (Exception e) {
+            ex = e;
+            System.out.println("testBinaryProtocol failed " + e);
+        } finally {
+            if (nioThread != null) nioThread.interrupt();
+            server.close();
+        }
+        assertNull(ex);
+    }
 }